@@ -1,19 +1,33 @@
 package com.hmdp.config;
 
+import com.hmdp.service.IStatsService;
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.LoginTokenSigner;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private LoginSessionCache loginSessionCache;
+
+    @Resource
+    private LoginTokenSigner loginTokenSigner;
+
+    @Resource
+    private IStatsService statsService;
+
+    @Value("${hmdp.stats.admin-user-ids:}")
+    private List<Long> adminUserIds;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -22,12 +36,21 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/user/code",
                         "/user/login",
                         "/blog/hot",
+                        "/blog/trending",
                         "/shop/**",
                         "/shop-type/**",
                         "/upload/**",
                         "/voucher/**"
                 ).order(1);
+        // 只允许管理员调用的接口
+        registry.addInterceptor(new AdminInterceptor(adminUserIds))
+                .addPathPatterns(
+                        "/stats/**",
+                        "/shop/geo/**",
+                        "/shop/search/reload",
+                        "/shop-type"
+                ).order(2);
         // 刷新token的拦截器，order越小越先执行
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(loginSessionCache, loginTokenSigner, statsService)).order(0);
     }
 }
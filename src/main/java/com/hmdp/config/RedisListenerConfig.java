@@ -0,0 +1,24 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.LoginSessionCache;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_EVICT_CHANNEL;
+
+@Configuration
+public class RedisListenerConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       LoginSessionCache loginSessionCache) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        // 订阅登录缓存失效通知
+        container.addMessageListener(loginSessionCache, new ChannelTopic(LOGIN_EVICT_CHANNEL));
+        return container;
+    }
+}
@@ -1,8 +1,12 @@
 package com.hmdp.controller;
 
 
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.BlogComments;
+import com.hmdp.service.IBlogCommentsService;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
 
 /**
  * <p>
@@ -16,4 +20,40 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/blog-comments")
 public class BlogCommentsController {
 
+    @Resource
+    private IBlogCommentsService blogCommentsService;
+
+    /**
+     * 发表评论，parentId不为空时表示回复评论
+     * @param comment
+     * @return 评论id
+     */
+    @PostMapping
+    public Result saveComment(@RequestBody BlogComments comment) {
+        return blogCommentsService.saveComment(comment);
+    }
+
+    /**
+     * 滚动分页查询笔记的一级评论
+     * @param blogId
+     * @param lastId 上一页返回的lastId
+     * @return
+     */
+    @GetMapping("/of/blog")
+    public Result queryCommentsOfBlog(@RequestParam("blogId") Long blogId,
+                                      @RequestParam(value = "lastId", required = false) Long lastId) {
+        return blogCommentsService.queryCommentsOfBlog(blogId, lastId);
+    }
+
+    /**
+     * 滚动分页查询评论的回复
+     * @param parentId 一级评论id
+     * @param lastId 上一页返回的lastId
+     * @return
+     */
+    @GetMapping("/replies")
+    public Result queryReplies(@RequestParam("parentId") Long parentId,
+                               @RequestParam(value = "lastId", required = false) Long lastId) {
+        return blogCommentsService.queryReplies(parentId, lastId);
+    }
 }
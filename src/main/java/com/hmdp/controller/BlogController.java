@@ -60,12 +60,38 @@ public class BlogController {
         return blogService.queryHotBlog(current);
     }
 
+    /**
+     * 查询时间衰减的blog热度榜
+     * @param typeId 商铺类型id，0表示全部类型
+     * @param current
+     * @return
+     */
+    @GetMapping("/trending")
+    public Result queryTrendingBlog(@RequestParam(value = "typeId", defaultValue = "0") Long typeId,
+                                    @RequestParam(value = "current", defaultValue = "1") Integer current) {
+        return blogService.queryTrendingBlog(typeId, current);
+    }
+
 
     @GetMapping("/likes/{id}")
     public Result queryBlogLikes(@PathVariable("id") Long id) {
         return blogService.queryBlogLikes(id);
     }
 
+    /**
+     * 滚动分页查询点赞列表
+     * @param id
+     * @param lastScore 上一页返回的lastScore
+     * @param lastId 上一页返回的lastId
+     * @return
+     */
+    @GetMapping("/likes/{id}/page")
+    public Result queryBlogLikesOfPage(@PathVariable("id") Long id,
+                                       @RequestParam(value = "lastScore", required = false) Double lastScore,
+                                       @RequestParam(value = "lastId", required = false) Long lastId) {
+        return blogService.queryBlogLikesOfPage(id, lastScore, lastId);
+    }
+
     @GetMapping("/of/user")
     public Result queryBlogByUserId(@RequestParam(value = "id") Long id,
                                     @RequestParam(value = "current", defaultValue = "1") Integer current) {
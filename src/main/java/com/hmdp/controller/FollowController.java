@@ -3,9 +3,13 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IFollowService;
+import com.hmdp.service.IRecommendService;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
+
+import static com.hmdp.utils.SystemConstants.USER_CARDS_MAX_SIZE;
 
 /**
  * <p>
@@ -22,6 +26,9 @@ public class FollowController {
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private IRecommendService recommendService;
+
 
     /**
      * 关注/取关
@@ -46,15 +53,78 @@ public class FollowController {
         return followService.followOrNot(followUserId);
     }
 
+    /**
+     * 批量查询是否关注
+     * @param followUserIds 用户id，逗号分隔
+     * @return 与ids顺序一致
+     */
+    @GetMapping("/or/not")
+    public Result followOrNot (@RequestParam("ids") List<Long> followUserIds) {
+        if (followUserIds.size() > USER_CARDS_MAX_SIZE) {
+            return Result.fail("一次最多查询" + USER_CARDS_MAX_SIZE + "个用户！");
+        }
+        return followService.followOrNot(followUserIds);
+    }
+
 
     /**
-     * 获取共同关注的用户
+     * 分页获取共同关注的用户
      * @param followUserId
+     * @param current 页码
      * @return
      */
     @GetMapping("/common/{id}")
-    public Result followCommons(@PathVariable("id") Long followUserId) {
-        return followService.followCommons(followUserId);
+    public Result followCommons(@PathVariable("id") Long followUserId,
+                                @RequestParam(value = "current", defaultValue = "1") Integer current) {
+        return followService.followCommons(followUserId, current);
+    }
+
+    /**
+     * 查询用户的粉丝数和关注数
+     * @param userId
+     * @return
+     */
+    @GetMapping("/count/{id}")
+    public Result queryFollowCount(@PathVariable("id") Long userId) {
+        return followService.queryFollowCount(userId);
+    }
+
+    /**
+     * 滚动分页查询用户的粉丝
+     * @param userId
+     * @param lastScore 上一页返回的lastScore
+     * @param lastId 上一页返回的lastId，第一页不传
+     * @return
+     */
+    @GetMapping("/fans/{id}")
+    public Result queryFans(@PathVariable("id") Long userId,
+                            @RequestParam(value = "lastScore", required = false) Double lastScore,
+                            @RequestParam(value = "lastId", required = false) Long lastId) {
+        return followService.queryFans(userId, lastScore, lastId);
+    }
+
+    /**
+     * 滚动分页查询用户关注的人
+     * @param userId
+     * @param lastScore 上一页返回的lastScore
+     * @param lastId 上一页返回的lastId，第一页不传
+     * @return
+     */
+    @GetMapping("/followees/{id}")
+    public Result queryFollowees(@PathVariable("id") Long userId,
+                                 @RequestParam(value = "lastScore", required = false) Double lastScore,
+                                 @RequestParam(value = "lastId", required = false) Long lastId) {
+        return followService.queryFollowees(userId, lastScore, lastId);
+    }
+
+    /**
+     * 分页查询当前用户可能认识的人
+     * @param current 页码
+     * @return
+     */
+    @GetMapping("/recommend")
+    public Result queryRecommendUsers(@RequestParam(value = "current", defaultValue = "1") Integer current) {
+        return recommendService.queryRecommendUsers(current);
     }
 
 }
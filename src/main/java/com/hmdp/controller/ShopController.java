@@ -1,12 +1,11 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopGeoService;
+import com.hmdp.service.IShopSearchService;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -26,6 +25,12 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private IShopGeoService shopGeoService;
+
+    @Resource
+    private IShopSearchService shopSearchService;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
@@ -43,10 +48,7 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -75,6 +77,42 @@ public class ShopController {
         return shopService.queryShopByType(typeId, current, x, y);
     }
 
+    /**
+     * 根据类型和坐标滚动分页查询附近的商铺
+     * @param typeId 商铺类型
+     * @param x 经度
+     * @param y 纬度
+     * @param snapshot 上一页返回的快照id，第一页不传
+     * @param lastDistance 上一页返回的lastDistance
+     * @param lastId 上一页返回的lastId，第一页不传
+     * @return 商铺列表及下一页的游标
+     */
+    @GetMapping("/of/type/cursor")
+    public Result queryShopByTypeOfCursor(
+            @RequestParam("typeId") Integer typeId,
+            @RequestParam("x") Double x,
+            @RequestParam("y") Double y,
+            @RequestParam(value = "snapshot", required = false) String snapshot,
+            @RequestParam(value = "lastDistance", required = false) Double lastDistance,
+            @RequestParam(value = "lastId", required = false) Long lastId
+    ) {
+        return shopService.queryShopByTypeOfCursor(typeId, x, y, snapshot, lastDistance, lastId);
+    }
+
+    /**
+     * 查询时间衰减的商铺热度榜
+     * @param typeId 商铺类型，0表示全部类型
+     * @param current 页码
+     * @return 商铺列表
+     */
+    @GetMapping("/trending")
+    public Result queryTrendingShop(
+            @RequestParam(value = "typeId", defaultValue = "0") Long typeId,
+            @RequestParam(value = "current", defaultValue = "1") Integer current
+    ) {
+        return shopService.queryTrendingShop(typeId, current);
+    }
+
     /**
      * 根据商铺名称关键字分页查询商铺信息
      * @param name 商铺名称关键字
@@ -86,11 +124,73 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        return shopSearchService.queryShopByName(name, current);
+    }
+
+    /**
+     * 商铺名称的输入提示
+     * @param prefix 搜索框中已经输入的内容
+     * @return 名称以prefix开头的商铺id和名称
+     */
+    @GetMapping("/of/name/suggest")
+    public Result suggestShopName(@RequestParam(value = "prefix", required = false) String prefix) {
+        return shopSearchService.suggestShopName(prefix);
+    }
+
+    /**
+     * 多条件搜索商铺
+     * @param typeId 商铺类型
+     * @param area 商圈
+     * @param minPrice 最低均价
+     * @param maxPrice 最高均价
+     * @param minScore 最低评分，1~5分乘10
+     * @param x 经度
+     * @param y 纬度
+     * @param distance 最远距离，米
+     * @param sortBy 排序方式，distance：距离由近到远；score：评分由高到低；sold：销量由高到低
+     * @param current 页码
+     * @return 商铺列表及符合条件的总数
+     */
+    @GetMapping("/search")
+    public Result searchShop(
+            @RequestParam(value = "typeId", required = false) Long typeId,
+            @RequestParam(value = "area", required = false) String area,
+            @RequestParam(value = "minPrice", required = false) Long minPrice,
+            @RequestParam(value = "maxPrice", required = false) Long maxPrice,
+            @RequestParam(value = "minScore", required = false) Integer minScore,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "distance", required = false) Double distance,
+            @RequestParam(value = "sortBy", defaultValue = "score") String sortBy,
+            @RequestParam(value = "current", defaultValue = "1") Integer current
+    ) {
+        return shopSearchService.search(typeId, area, minPrice, maxPrice, minScore, x, y, distance, sortBy, current);
+    }
+
+    /**
+     * 从数据库全量重新加载商铺搜索索引，只允许管理员调用，见AdminInterceptor
+     * @return 加载的商铺数量
+     */
+    @PostMapping("/search/reload")
+    public Result reloadShopSearch() {
+        return Result.ok(shopSearchService.loadAll());
+    }
+
+    /**
+     * 从数据库全量重新加载商铺地理位置索引，只允许管理员调用，见AdminInterceptor
+     * @return 加载的商铺数量
+     */
+    @PostMapping("/geo/reload")
+    public Result reloadShopGeo() {
+        return Result.ok(shopGeoService.loadAll());
+    }
+
+    /**
+     * 检查并修复商铺地理位置索引与数据库的不一致，只允许管理员调用，见AdminInterceptor
+     * @return 补上和删除的商铺数量
+     */
+    @PostMapping("/geo/check")
+    public Result checkShopGeo() {
+        return Result.ok(shopGeoService.checkConsistency());
     }
 }
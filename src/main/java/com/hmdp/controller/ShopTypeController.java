@@ -2,10 +2,10 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.entity.ShopType;
 import com.hmdp.service.IShopTypeService;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 
@@ -23,8 +23,21 @@ public class ShopTypeController {
     @Resource
     private IShopTypeService typeService;
 
-    @GetMapping("list")
-    public Result queryTypeList() {
-        return typeService.queryShopTypeList();
+    /**
+     * 查询店铺类型列表，直接返回本地缓存的响应
+     */
+    @GetMapping(value = "list", produces = MediaType.APPLICATION_JSON_VALUE)
+    public byte[] queryTypeList() {
+        return typeService.queryShopTypeListBody();
+    }
+
+    /**
+     * 修改店铺类型，只允许管理员调用，见AdminInterceptor
+     * @param shopType 店铺类型数据
+     * @return 无
+     */
+    @PutMapping
+    public Result updateType(@RequestBody ShopType shopType) {
+        return typeService.updateShopType(shopType);
     }
 }
@@ -0,0 +1,83 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IStatsService;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * <p>
+ * 全站统计，只允许配置的管理员访问（见AdminInterceptor），日期格式为yyyyMMdd，不传时为今天
+ * </p>
+ */
+@RestController
+@RequestMapping("/stats")
+public class StatsController {
+
+    @Resource
+    private IStatsService statsService;
+
+    /**
+     * 查询某天的访问用户数
+     */
+    @GetMapping("/uv")
+    public Result queryUv(@RequestParam(value = "date", required = false) String date) {
+        LocalDate day = parseDate(date);
+        return day == null ? Result.fail("日期格式错误！") : statsService.queryUv(day);
+    }
+
+    /**
+     * 查询一段时间内去重后的访问用户数
+     */
+    @GetMapping("/uv/range")
+    public Result queryUvOfRange(@RequestParam("begin") String begin, @RequestParam("end") String end) {
+        return statsService.queryUvOfRange(parseDate(begin), parseDate(end));
+    }
+
+    /**
+     * 查询某天的签到人数
+     */
+    @GetMapping("/sign")
+    public Result querySignCount(@RequestParam(value = "date", required = false) String date) {
+        LocalDate day = parseDate(date);
+        return day == null ? Result.fail("日期格式错误！") : statsService.querySignCount(day);
+    }
+
+    /**
+     * 查询从begin开始days天内至少签到过一次的人数
+     */
+    @GetMapping("/sign/active")
+    public Result querySignActive(
+            @RequestParam("begin") String begin, @RequestParam(value = "days", defaultValue = "7") Integer days) {
+        LocalDate day = parseDate(begin);
+        return day == null ? Result.fail("日期格式错误！") : statsService.querySignActive(day, days);
+    }
+
+    /**
+     * 查询某天签到的用户在之后days天内的留存，7为周留存，30为月留存
+     */
+    @GetMapping("/sign/retention")
+    public Result querySignRetention(
+            @RequestParam("date") String date, @RequestParam(value = "days", defaultValue = "7") Integer days) {
+        LocalDate day = parseDate(date);
+        return day == null ? Result.fail("日期格式错误！") : statsService.querySignRetention(day, days);
+    }
+
+    private static LocalDate parseDate(String date) {
+        if (date == null || date.isEmpty()) {
+            return LocalDate.now();
+        }
+        try {
+            return LocalDate.parse(date, DateTimeFormatter.BASIC_ISO_DATE);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
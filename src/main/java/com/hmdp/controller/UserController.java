@@ -1,20 +1,25 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
-import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
+import com.hmdp.service.ISignService;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import java.util.List;
+
+import static com.hmdp.utils.SystemConstants.USER_CARDS_MAX_SIZE;
 
 /**
  * <p>
@@ -35,13 +40,24 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private ISignService signService;
+
+    @Value("${hmdp.sms.trusted-proxies:}")
+    private List<String> trustedProxies;
+
     /**
      * 发送手机验证码
      */
     @PostMapping("code")
-    public Result sendCode(@RequestParam("phone") String phone, HttpSession session) {
-
-        return userService.sendCode(phone, session);
+    public Result sendCode(@RequestParam("phone") String phone, HttpServletRequest request, HttpSession session) {
+        // 只有来自配置的代理（nginx）的请求才使用其设置的真实客户端IP，否则客户端可以伪造请求头绕过按IP限流
+        String ip = request.getRemoteAddr();
+        String realIp = request.getHeader("X-Real-IP");
+        if (StrUtil.isNotBlank(realIp) && trustedProxies.contains(ip)) {
+            ip = realIp.trim();
+        }
+        return userService.sendCode(phone, ip, session);
     }
 
     /**
@@ -59,9 +75,17 @@ public class UserController {
      * @return 无
      */
     @PostMapping("/logout")
-    public Result logout(){
-        // TODO 实现登出功能
-        return Result.fail("功能未完成");
+    public Result logout(HttpServletRequest request){
+        return userService.logout(request.getHeader("authorization"));
+    }
+
+    /**
+     * 退出所有设备上的登录
+     * @return 下线的会话数
+     */
+    @PostMapping("/logout/all")
+    public Result logoutAll(){
+        return userService.logoutAll();
     }
 
     @GetMapping("/me")
@@ -70,39 +94,56 @@ public class UserController {
         return Result.ok(user);
     }
 
+    /**
+     * 修改当前用户的昵称和头像
+     */
+    @PutMapping("/me")
+    public Result updateMe(@RequestBody UserDTO userDTO){
+        return userService.updateMe(userDTO);
+    }
+
     @GetMapping("/info/{id}")
     public Result info(@PathVariable("id") Long userId){
-        // 查询详情
-        UserInfo info = userInfoService.getById(userId);
-        if (info == null) {
-            // 没有详情，应该是第一次查看详情
-            return Result.ok();
-        }
-        info.setCreateTime(null);
-        info.setUpdateTime(null);
-        // 返回
+        // 查询详情，走缓存
+        UserInfo info = userInfoService.queryUserInfoById(userId);
+        // 没有详情，应该是第一次查看详情
         return Result.ok(info);
     }
 
+    /**
+     * 修改当前用户的详情
+     */
+    @PutMapping("/info")
+    public Result updateInfo(@RequestBody UserInfo userInfo){
+        return userInfoService.updateUserInfo(userInfo);
+    }
 
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId){
-        User user = userService.getById(userId);
-        if (user == null) {
-            return Result.ok();
-        }
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
+        UserDTO userDTO = userService.queryUserDTOById(userId);
         return Result.ok(userDTO);
     }
 
+    /**
+     * 批量查询用户卡片，用于列表页一次加载多个用户的昵称和头像
+     * @param ids 用户id，逗号分隔
+     * @return 与ids顺序一致，不存在的用户被跳过
+     */
+    @GetMapping("/cards")
+    public Result queryUserCards(@RequestParam("ids") List<Long> ids){
+        if (ids.size() > USER_CARDS_MAX_SIZE) {
+            return Result.fail("一次最多查询" + USER_CARDS_MAX_SIZE + "个用户！");
+        }
+        return Result.ok(userService.queryUserDTOByIds(ids));
+    }
+
     /**
      * 用户签到
      * @return
      */
     @PostMapping("/sign")
     public Result sign() {
-        userService.sign();
-        return Result.ok();
+        return signService.sign();
     }
 
     /**
@@ -111,6 +152,15 @@ public class UserController {
      */
     @GetMapping("/sign/count")
     public Result signCount() {
-        return userService.signCount();
+        return signService.signCount();
+    }
+
+    /**
+     * 统计连续签到天数、今年最长连续签到天数和本月签到天数
+     * @return
+     */
+    @GetMapping("/sign/stats")
+    public Result signStats() {
+        return signService.signStats();
     }
 }
@@ -0,0 +1,13 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class CursorResult {
+    private List<?> list;
+    // 本页最后一个元素的分数和id，作为查询下一页的游标，为空表示没有更多数据
+    private Double lastScore;
+    private Long lastId;
+}
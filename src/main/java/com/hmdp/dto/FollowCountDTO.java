@@ -0,0 +1,11 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class FollowCountDTO {
+    // 粉丝数
+    private Long fans;
+    // 关注数
+    private Long followee;
+}
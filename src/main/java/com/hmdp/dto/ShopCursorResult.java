@@ -0,0 +1,16 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.Shop;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ShopCursorResult {
+    private List<Shop> list;
+    // 本次查询结果快照的id，查询下一页时带上
+    private String snapshot;
+    // 本页最后一个商铺的距离和id，作为查询下一页的游标，为空表示没有更多数据
+    private Double lastDistance;
+    private Long lastId;
+}
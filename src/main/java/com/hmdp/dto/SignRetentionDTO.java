@@ -0,0 +1,13 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class SignRetentionDTO {
+    // 当天签到的人数
+    private Long cohort;
+    // 其中在之后的统计周期内再次签到的人数
+    private Long retained;
+    // 留存率
+    private Double rate;
+}
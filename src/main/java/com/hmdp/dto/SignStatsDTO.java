@@ -0,0 +1,13 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class SignStatsDTO {
+    // 截止今天的连续签到天数，可以跨月、跨年
+    private Integer continuous;
+    // 今年最长的连续签到天数
+    private Integer longest;
+    // 本月签到天数
+    private Integer monthCount;
+}
@@ -2,6 +2,7 @@ package com.hmdp.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.hmdp.entity.Follow;
+import org.apache.ibatis.cursor.Cursor;
 
 /**
  * <p>
@@ -13,4 +14,8 @@ import com.hmdp.entity.Follow;
  */
 public interface FollowMapper extends BaseMapper<Follow> {
 
+    /**
+     * 流式读取所有关注过别人的用户id，按用户id排序，不会一次性加载到内存，需要在事务中使用
+     */
+    Cursor<Long> scanFollowerIds();
 }
@@ -13,4 +13,8 @@ import com.hmdp.entity.UserInfo;
  */
 public interface UserInfoMapper extends BaseMapper<UserInfo> {
 
+    /**
+     * 保存用户可编辑的资料（城市、介绍、性别、生日），详情不存在时插入
+     */
+    int saveProfile(UserInfo userInfo);
 }
@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.dto.Result;
 import com.hmdp.entity.BlogComments;
 
 /**
@@ -13,4 +14,26 @@ import com.hmdp.entity.BlogComments;
  */
 public interface IBlogCommentsService extends IService<BlogComments> {
 
+    /**
+     * 发表评论或回复评论
+     * @param comment
+     * @return
+     */
+    Result saveComment(BlogComments comment);
+
+    /**
+     * 滚动分页查询笔记的一级评论，按时间倒序
+     * @param blogId
+     * @param lastId 上一页最后一条评论的id，第一页不传
+     * @return
+     */
+    Result queryCommentsOfBlog(Long blogId, Long lastId);
+
+    /**
+     * 滚动分页查询一级评论下的回复，按时间正序
+     * @param parentId
+     * @param lastId 上一页最后一条回复的id，第一页不传
+     * @return
+     */
+    Result queryReplies(Long parentId, Long lastId);
 }
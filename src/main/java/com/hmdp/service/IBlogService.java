@@ -22,6 +22,21 @@ public interface IBlogService extends IService<Blog> {
     Result queryByBlogId(Long id);
 
 
+    /**
+     * 根据id查询blog（走缓存，不包含作者和点赞信息）
+     * @param id
+     * @return
+     */
+    Blog queryBlogById(Long id);
+
+
+    /**
+     * 笔记新增评论：评论数延迟批量写入数据库，同时计入热度
+     * @param blog
+     */
+    void increaseComments(Blog blog);
+
+
     /**
      * 查询热门blog
      * @param current
@@ -30,6 +45,15 @@ public interface IBlogService extends IService<Blog> {
     Result queryHotBlog(Integer current);
 
 
+    /**
+     * 查询时间衰减的blog热度榜
+     * @param typeId 商铺类型id，0表示全部类型
+     * @param current
+     * @return
+     */
+    Result queryTrendingBlog(Long typeId, Integer current);
+
+
     /**
      * 修改点赞数量
      * @param id
@@ -46,6 +70,16 @@ public interface IBlogService extends IService<Blog> {
     Result queryBlogLikes(Long id);
 
 
+    /**
+     * 滚动分页查询博客点赞列表
+     * @param id
+     * @param lastScore 上一页最后一个点赞的分数（点赞时间），第一页不传
+     * @param lastId 上一页最后一个点赞的用户id，第一页不传
+     * @return
+     */
+    Result queryBlogLikesOfPage(Long id, Double lastScore, Long lastId);
+
+
     /**
      * 新增笔记
      * @param blog
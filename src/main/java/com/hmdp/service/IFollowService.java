@@ -4,6 +4,9 @@ import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Follow;
 
+import java.util.List;
+import java.util.function.Consumer;
+
 /**
  * <p>
  *  服务类
@@ -30,9 +33,56 @@ public interface IFollowService extends IService<Follow> {
     Result followOrNot(Long followUserId);
 
     /**
-     * 获取共同关注的用户
+     * 批量查询是否关注，用于列表页
+     * @param followUserIds
+     * @return 与followUserIds顺序一致
+     */
+    Result followOrNot(List<Long> followUserIds);
+
+    /**
+     * 分页获取共同关注的用户
      * @param followUserId
+     * @param current
+     * @return
+     */
+    Result followCommons(Long followUserId, Integer current);
+
+    /**
+     * 查询用户的粉丝数和关注数
+     * @param userId
+     * @return
+     */
+    Result queryFollowCount(Long userId);
+
+    /**
+     * 滚动分页查询用户的粉丝，按关注时间倒序
+     * @param userId
+     * @param lastScore 上一页最后一个粉丝的关注时间
+     * @param lastId 上一页最后一个粉丝的id，第一页不传
+     * @return
+     */
+    Result queryFans(Long userId, Double lastScore, Long lastId);
+
+    /**
+     * 滚动分页查询用户关注的人，按关注时间倒序
+     * @param userId
+     * @param lastScore 上一页最后一个用户的关注时间
+     * @param lastId 上一页最后一个用户的id，第一页不传
      * @return
      */
-    Result followCommons(Long followUserId);
+    Result queryFollowees(Long userId, Double lastScore, Long lastId);
+
+    /**
+     * 分批遍历用户的全部粉丝id
+     * @param userId
+     * @param consumer 每次接收一批粉丝id
+     */
+    void scanFans(Long userId, Consumer<List<String>> consumer);
+
+    /**
+     * 保证用户的关注集合follows:{userId}在redis中是完整的，不完整时从数据库重建
+     * @param userId
+     * @return 集合完整返回true；其它线程正在重建或重建期间有取关时返回false，调用方应直接查询数据库
+     */
+    boolean loadFollows(Long userId);
 }
@@ -0,0 +1,24 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+
+/**
+ * <p>
+ * "可能认识的人"推荐服务
+ * </p>
+ */
+public interface IRecommendService {
+
+    /**
+     * 分页查询当前用户可能认识的人，按共同关注数倒序
+     * @param current
+     * @return
+     */
+    Result queryRecommendUsers(Integer current);
+
+    /**
+     * 重新计算一个用户的推荐结果
+     * @param userId
+     */
+    void recommendFor(Long userId);
+}
@@ -0,0 +1,32 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.Shop;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * 商铺地理位置索引 shop:geo:{typeId} 的维护
+ * </p>
+ */
+public interface IShopGeoService {
+
+    /**
+     * 从数据库全量加载所有商铺的坐标
+     * @return 加载的商铺数量
+     */
+    int loadAll();
+
+    /**
+     * 新增商铺或修改商铺后同步索引，类型变化时从原类型的索引中删除，并删除新旧位置附近的网格缓存
+     * @param shop 修改后的商铺，需要包含id、typeId、x、y
+     * @param old 修改前的商铺，需要包含typeId、x、y，新增时为null
+     */
+    void sync(Shop shop, Shop old);
+
+    /**
+     * 对比数据库与索引，补上缺失和位置不对的商铺，删除已不存在或类型已变化的商铺
+     * @return 补上的数量added和删除的数量removed
+     */
+    Map<String, Integer> checkConsistency();
+}
@@ -0,0 +1,31 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.ShopGridIndex;
+
+/**
+ * <p>
+ * 进程内的商铺空间索引，用于单机部署时不经过redis查询附近的商铺
+ * </p>
+ */
+public interface IShopMemoryIndexService {
+
+    /**
+     * 从数据库全量加载所有商铺的坐标，构建新的索引后替换
+     * @return 加载的商铺数量
+     */
+    int loadAll();
+
+    /**
+     * 查询radius米以内最近的k个商铺
+     * @return 按距离升序的商铺id和距离，未启用或还未加载完成时返回null
+     */
+    ShopGridIndex.Neighbors nearest(Long typeId, double x, double y, double radius, int k);
+
+    /**
+     * 新增商铺或修改商铺后同步索引
+     * @param shop 修改后的商铺，需要包含id、typeId、x、y
+     * @param old 修改前的商铺，需要包含typeId，新增时为null
+     */
+    void sync(Shop shop, Shop old);
+}
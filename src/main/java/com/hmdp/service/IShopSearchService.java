@@ -0,0 +1,56 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Shop;
+
+/**
+ * <p>
+ * 商铺多条件搜索
+ * </p>
+ */
+public interface IShopSearchService {
+
+    /**
+     * 从数据库全量加载商铺，构建新的搜索索引后替换
+     * @return 加载的商铺数量
+     */
+    int loadAll();
+
+    /**
+     * 按类型、商圈、均价、评分、距离过滤，按距离、评分或销量排序后分页
+     * @param typeId 类型，不传表示不限
+     * @param area 商圈，不传表示不限
+     * @param minPrice 最低均价
+     * @param maxPrice 最高均价
+     * @param minScore 最低评分，1~5分乘10
+     * @param x 经度
+     * @param y 纬度
+     * @param distance 最远距离，米，需要同时传坐标
+     * @param sortBy 排序方式，distance、score、sold
+     * @param current 页码
+     * @return 商铺列表
+     */
+    Result search(Long typeId, String area, Long minPrice, Long maxPrice, Integer minScore,
+                  Double x, Double y, Double distance, String sortBy, Integer current);
+
+    /**
+     * 根据名称关键字分页查询商铺，按评分、销量降序
+     * @param name 名称关键字，为空时按原来的方式分页查询所有商铺
+     * @param current 页码
+     * @return 商铺列表
+     */
+    Result queryShopByName(String name, Integer current);
+
+    /**
+     * 名称以prefix开头的商铺，用于搜索框的输入提示
+     * @param prefix 用户已经输入的内容
+     * @return 商铺id和名称，按评分、销量降序
+     */
+    Result suggestShopName(String prefix);
+
+    /**
+     * 新增商铺或修改商铺后同步索引
+     * @param shop 修改后的商铺，需要包含id、typeId、name、area、avgPrice、score、sold、x、y
+     */
+    void sync(Shop shop);
+}
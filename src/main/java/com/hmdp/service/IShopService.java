@@ -28,6 +28,13 @@ public interface IShopService extends IService<Shop> {
      */
     Result updateShop(Shop shop);
 
+    /**
+     * 新增商铺信息
+     * @param shop
+     * @return 商铺id
+     */
+    Result saveShop(Shop shop);
+
     /**
      * 根据类型ID查询商铺
      * @param typeId
@@ -37,4 +44,25 @@ public interface IShopService extends IService<Shop> {
      * @return
      */
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    /**
+     * 根据类型和坐标滚动分页查询附近的商铺
+     * @param typeId
+     * @param x
+     * @param y
+     * @param snapshot 上一页返回的快照id，第一页不传
+     * @param lastDistance 上一页最后一个商铺的距离
+     * @param lastId 上一页最后一个商铺的id，第一页不传
+     * @return
+     */
+    Result queryShopByTypeOfCursor(Integer typeId, Double x, Double y,
+                                   String snapshot, Double lastDistance, Long lastId);
+
+    /**
+     * 查询时间衰减的商铺热度榜
+     * @param typeId 商铺类型id，0表示全部类型
+     * @param current
+     * @return
+     */
+    Result queryTrendingShop(Long typeId, Integer current);
 }
@@ -20,4 +20,17 @@ public interface IShopTypeService extends IService<ShopType> {
      */
     Result queryShopTypeList();
 
+    /**
+     * 查询店铺类型列表，返回序列化好的响应，类型列表未变化时不重复序列化
+     * @return Result的JSON
+     */
+    byte[] queryShopTypeListBody();
+
+    /**
+     * 修改店铺类型
+     * @param shopType
+     * @return
+     */
+    Result updateShopType(ShopType shopType);
+
 }
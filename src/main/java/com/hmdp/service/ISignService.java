@@ -0,0 +1,42 @@
+package com.hmdp.service;
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.SignStatsDTO;
+import com.hmdp.entity.Sign;
+
+import java.time.LocalDate;
+
+/**
+ * <p>
+ *  服务类
+ * </p>
+ */
+public interface ISignService extends IService<Sign> {
+
+    /**
+     * 用户签到
+     * @return
+     */
+    Result sign();
+
+    /**
+     * 统计连续签到天数
+     * @return
+     */
+    Result signCount();
+
+    /**
+     * 统计连续签到天数、今年最长连续签到天数和本月签到天数
+     * @return
+     */
+    Result signStats();
+
+    /**
+     * 查询用户截止指定日期的签到统计，一次pipeline读取今年和去年的签到记录
+     * @param userId
+     * @param today
+     * @return
+     */
+    SignStatsDTO querySignStats(Long userId, LocalDate today);
+}
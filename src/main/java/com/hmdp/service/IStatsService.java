@@ -0,0 +1,57 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+
+import java.time.LocalDate;
+
+/**
+ * <p>
+ * 全站统计服务，日活基于HyperLogLog，签到人数和留存基于以用户id为偏移量的每日位图
+ * </p>
+ */
+public interface IStatsService {
+
+    /**
+     * 记录用户访问，每个实例每天对每个用户只写一次redis
+     * @param userId
+     */
+    void recordVisit(Long userId);
+
+    /**
+     * 查询某天的访问用户数（UV）
+     * @param date
+     * @return
+     */
+    Result queryUv(LocalDate date);
+
+    /**
+     * 查询一段时间内去重后的访问用户数
+     * @param begin
+     * @param end
+     * @return
+     */
+    Result queryUvOfRange(LocalDate begin, LocalDate end);
+
+    /**
+     * 查询某天的签到人数
+     * @param date
+     * @return
+     */
+    Result querySignCount(LocalDate date);
+
+    /**
+     * 查询从begin开始days天内至少签到过一次的人数
+     * @param begin
+     * @param days
+     * @return
+     */
+    Result querySignActive(LocalDate begin, Integer days);
+
+    /**
+     * 查询某天签到的用户在之后days天内的留存
+     * @param date
+     * @param days 7为周留存，30为月留存
+     * @return
+     */
+    Result querySignRetention(LocalDate date, Integer days);
+}
@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.dto.Result;
 import com.hmdp.entity.UserInfo;
 
 /**
@@ -13,4 +14,17 @@ import com.hmdp.entity.UserInfo;
  */
 public interface IUserInfoService extends IService<UserInfo> {
 
+    /**
+     * 根据用户id查询详情（走缓存）
+     * @param userId
+     * @return 没有详情时返回null
+     */
+    UserInfo queryUserInfoById(Long userId);
+
+    /**
+     * 修改当前用户的资料，并删除缓存
+     * @param userInfo
+     * @return
+     */
+    Result updateUserInfo(UserInfo userInfo);
 }
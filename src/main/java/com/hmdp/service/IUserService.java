@@ -3,9 +3,11 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.List;
 
 /**
  * <p>
@@ -20,9 +22,10 @@ public interface IUserService extends IService<User> {
     /**
      * 发送手机验证码
      * @param phone
+     * @param ip 客户端IP，用于限流
      * @param session
      */
-    Result sendCode(String phone, HttpSession session);
+    Result sendCode(String phone, String ip, HttpSession session);
 
 
     /**
@@ -35,14 +38,40 @@ public interface IUserService extends IService<User> {
 
 
     /**
-     * 用户签到
+     * 登出
+     * @param token
+     * @return
+     */
+    Result logout(String token);
+
+
+    /**
+     * 退出当前用户在所有设备上的登录
+     * @return
+     */
+    Result logoutAll();
+
+
+    /**
+     * 修改当前用户的昵称和头像
+     * @param userDTO
+     * @return
+     */
+    Result updateMe(UserDTO userDTO);
+
+
+    /**
+     * 根据id查询用户（走缓存）
+     * @param id
+     * @return
      */
-    Result sign();
+    UserDTO queryUserDTOById(Long id);
 
 
     /**
-     * 统计连续签到天数
+     * 根据id批量查询用户（走缓存），结果顺序与ids一致
+     * @param ids
      * @return
      */
-    Result signCount();
+    List<UserDTO> queryUserDTOByIds(List<Long> ids);
 }
@@ -1,11 +1,39 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.CursorResult;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
 import com.hmdp.entity.BlogComments;
 import com.hmdp.mapper.BlogCommentsMapper;
 import com.hmdp.service.IBlogCommentsService;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_COMMENTS_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_COMMENTS_VERSION_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_COMMENTS_TTL;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +45,201 @@ import org.springframework.stereotype.Service;
 @Service
 public class BlogCommentsServiceImpl extends ServiceImpl<BlogCommentsMapper, BlogComments> implements IBlogCommentsService {
 
+    // 评论内容的最大长度，与tb_blog_comments.content一致
+    private static final int MAX_CONTENT_LENGTH = 255;
+
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 正常状态的评论，被举报和禁止查看的评论不展示
+    private static final int STATUS_NORMAL = 0;
+
+    // 第一页为空时缓存的占位元素
+    private static final String EMPTY_PLACEHOLDER = "";
+
+    // 初始化lua脚本
+    private static final DefaultRedisScript<Long> COMMENT_PUSH_SCRIPT;
+    private static final DefaultRedisScript<Long> COMMENT_REBUILD_SCRIPT;
+    static {
+        COMMENT_PUSH_SCRIPT = new DefaultRedisScript<>();
+        COMMENT_PUSH_SCRIPT.setLocation(new ClassPathResource("comment_push.lua"));
+        COMMENT_PUSH_SCRIPT.setResultType(Long.class);
+        COMMENT_REBUILD_SCRIPT = new DefaultRedisScript<>();
+        COMMENT_REBUILD_SCRIPT.setLocation(new ClassPathResource("comment_rebuild.lua"));
+        COMMENT_REBUILD_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 发表评论或回复评论
+     *
+     * @param comment
+     * @return
+     */
+    public Result saveComment(BlogComments comment) {
+        // 1.校验评论内容
+        String content = comment.getContent();
+        if (StrUtil.isBlank(content) || content.length() > MAX_CONTENT_LENGTH) {
+            return Result.fail("评论内容不能为空且不能超过" + MAX_CONTENT_LENGTH + "个字！");
+        }
+        // 2.校验笔记是否存在
+        Blog blog = blogService.queryBlogById(comment.getBlogId());
+        if (blog == null) {
+            return Result.fail("笔记不存在！");
+        }
+        // 3.回复评论时，校验一级评论是否存在、可见且属于同一篇笔记
+        Long parentId = comment.getParentId() == null ? 0L : comment.getParentId();
+        if (parentId != 0) {
+            BlogComments parent = getById(parentId);
+            if (parent == null || parent.getParentId() != 0 || !parent.getBlogId().equals(blog.getId())
+                    || Boolean.TRUE.equals(parent.getStatus())) {
+                return Result.fail("评论不存在！");
+            }
+        }
+        // 回复的评论只能是这条一级评论本身，或它下面的某条回复
+        Long answerId = comment.getAnswerId() == null ? parentId : comment.getAnswerId();
+        if (!answerId.equals(parentId)) {
+            BlogComments answer = parentId == 0 ? null : getById(answerId);
+            if (answer == null || !answer.getParentId().equals(parentId) || !answer.getBlogId().equals(blog.getId())
+                    || Boolean.TRUE.equals(answer.getStatus())) {
+                return Result.fail("评论不存在！");
+            }
+        }
+        // 4.保存评论
+        comment.setId(null);
+        comment.setUserId(UserHolder.getUser().getId());
+        comment.setParentId(parentId);
+        comment.setAnswerId(answerId);
+        comment.setLiked(0);
+        comment.setStatus(false);
+        comment.setCreateTime(LocalDateTime.now());
+        boolean isSuccess = save(comment);
+        if (!isSuccess) {
+            return Result.fail("发表评论失败！");
+        }
+        // 5.一级评论写入第一页缓存，同时增加版本号，使并发中的重建作废
+        if (parentId == 0) {
+            stringRedisTemplate.execute(COMMENT_PUSH_SCRIPT,
+                    Arrays.asList(CACHE_BLOG_COMMENTS_KEY + blog.getId(), CACHE_BLOG_COMMENTS_VERSION_KEY + blog.getId()),
+                    JSONUtil.toJsonStr(comment), String.valueOf(SystemConstants.MAX_PAGE_SIZE),
+                    String.valueOf(TimeUnit.MINUTES.toSeconds(CACHE_BLOG_COMMENTS_TTL)));
+        }
+        // 6.更新笔记评论数和热度
+        blogService.increaseComments(blog);
+        return Result.ok(comment.getId());
+    }
+
+    /**
+     * 滚动分页查询笔记的一级评论，按时间倒序，只返回正常状态的评论
+     *
+     * @param blogId
+     * @param lastId
+     * @return
+     */
+    public Result queryCommentsOfBlog(Long blogId, Long lastId) {
+        List<BlogComments> comments;
+        if (lastId == null) {
+            // 1.第一页访问最多，走缓存
+            comments = queryFirstPage(blogId);
+        } else {
+            // 2.之后的页基于(blog_id, parent_id, id)索引按id定位，不使用offset，翻多少页查询代价都一样
+            comments = query()
+                    .eq("blog_id", blogId)
+                    .eq("parent_id", 0)
+                    .eq("status", STATUS_NORMAL)
+                    .lt("id", lastId)
+                    .orderByDesc("id")
+                    .last("LIMIT " + SystemConstants.MAX_PAGE_SIZE)
+                    .list();
+        }
+        return Result.ok(toCursorResult(comments));
+    }
+
+    /**
+     * 滚动分页查询一级评论下的回复，按时间正序，只返回正常状态的回复
+     *
+     * @param parentId
+     * @param lastId
+     * @return
+     */
+    public Result queryReplies(Long parentId, Long lastId) {
+        List<BlogComments> replies = query()
+                .eq("parent_id", parentId)
+                .eq("status", STATUS_NORMAL)
+                .gt("id", lastId == null ? 0L : lastId)
+                .orderByAsc("id")
+                .last("LIMIT " + SystemConstants.MAX_PAGE_SIZE)
+                .list();
+        return Result.ok(toCursorResult(replies));
+    }
+
+    /**
+     * 查询笔记第一页一级评论，缓存在redis list中
+     * @param blogId
+     * @return
+     */
+    private List<BlogComments> queryFirstPage(Long blogId) {
+        String key = CACHE_BLOG_COMMENTS_KEY + blogId;
+        String versionKey = CACHE_BLOG_COMMENTS_VERSION_KEY + blogId;
+        // 1.从redis查询缓存
+        List<String> jsons = stringRedisTemplate.opsForList().range(key, 0, SystemConstants.MAX_PAGE_SIZE - 1);
+        if (jsons != null && !jsons.isEmpty()) {
+            // 2.命中，直接返回，跳过空页的占位元素
+            return jsons.stream().filter(StrUtil::isNotEmpty)
+                    .map(json -> JSONUtil.toBean(json, BlogComments.class)).collect(Collectors.toList());
+        }
+        // 3.未命中，先记下版本号再查询数据库
+        String version = StrUtil.blankToDefault(stringRedisTemplate.opsForValue().get(versionKey), "0");
+        List<BlogComments> comments = query()
+                .eq("blog_id", blogId)
+                .eq("parent_id", 0)
+                .eq("status", STATUS_NORMAL)
+                .orderByDesc("id")
+                .last("LIMIT " + SystemConstants.MAX_PAGE_SIZE)
+                .list();
+        // 4.版本号未变时才写入redis，否则期间有新评论，这次的结果可能缺少它，交给下次请求重建
+        //   没有评论时写入占位元素，避免没有评论的笔记每次都查询数据库
+        List<String> args = new ArrayList<>(comments.size() + 3);
+        args.add(version);
+        args.add(String.valueOf(TimeUnit.MINUTES.toSeconds(CACHE_BLOG_COMMENTS_TTL)));
+        if (comments.isEmpty()) {
+            args.add(EMPTY_PLACEHOLDER);
+        } else {
+            comments.forEach(comment -> args.add(JSONUtil.toJsonStr(comment)));
+        }
+        stringRedisTemplate.execute(COMMENT_REBUILD_SCRIPT, Arrays.asList(key, versionKey), args.toArray());
+        return comments;
+    }
+
+    /**
+     * 补充评论者信息并封装游标
+     * @param comments
+     * @return
+     */
+    private CursorResult toCursorResult(List<BlogComments> comments) {
+        CursorResult cursorResult = new CursorResult();
+        if (comments.isEmpty()) {
+            cursorResult.setList(Collections.emptyList());
+            return cursorResult;
+        }
+        // 评论者信息从用户缓存中批量查询
+        List<Long> userIds = comments.stream().map(BlogComments::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> userMap = userService.queryUserDTOByIds(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, Function.identity()));
+        for (BlogComments comment : comments) {
+            UserDTO user = userMap.get(comment.getUserId());
+            if (user != null) {
+                comment.setName(user.getNickName());
+                comment.setIcon(user.getIcon());
+            }
+        }
+        cursorResult.setList(comments);
+        cursorResult.setLastId(comments.get(comments.size() - 1).getId());
+        return cursorResult;
+    }
 }
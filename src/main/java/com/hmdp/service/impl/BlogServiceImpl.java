@@ -1,34 +1,47 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.CursorResult;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
+import com.hmdp.entity.Shop;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IFollowService;
+import com.hmdp.service.IShopService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.TrendingScorer;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -38,6 +51,7 @@ import static com.hmdp.utils.RedisConstants.FEED_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
@@ -50,6 +64,44 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private TrendingScorer trendingScorer;
+
+    // 重建热门排行榜时每批从数据库读取的blog数量
+    private static final int HOT_REBUILD_BATCH_SIZE = 1000;
+
+    // 评论数写回数据库的间隔（秒）
+    private static final long COMMENTS_FLUSH_INTERVAL = 5;
+
+    // 创建线程池，定时把评论数增量批量写回数据库
+    private static final ScheduledExecutorService COMMENTS_FLUSH_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    // 保证在当前类初始化完成后就运行
+    @PostConstruct
+    private void init() {
+        COMMENTS_FLUSH_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                flushComments();
+            } catch (Exception e) {
+                log.error("评论数写回数据库异常", e);
+            }
+        }, COMMENTS_FLUSH_INTERVAL, COMMENTS_FLUSH_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    // 初始化lua脚本
+    private static final DefaultRedisScript<Long> BLOG_HOT_SCRIPT;
+    static {
+        BLOG_HOT_SCRIPT = new DefaultRedisScript<>();
+        BLOG_HOT_SCRIPT.setLocation(new ClassPathResource("blog_hot.lua"));
+        BLOG_HOT_SCRIPT.setResultType(Long.class);
+    }
+
     /**
      * 根据id查询blog
      *
@@ -57,15 +109,45 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      * @return
      */
     public Result queryByBlogId(Long id) {
-        Blog blog = getById(id);
+        // 1.blog发布后基本不会修改，基于逻辑过期从缓存查询
+        Blog blog = queryBlogById(id);
         if (blog == null) {
             return Result.fail("笔记不存在！");
         }
+        // 2.作者信息单独缓存，作者修改资料后不用清理所有blog的缓存
         queryBlogUser(blog);
-        isBlogLiked(blog);
+        // 3.点赞数和是否点赞会随时变化，不能使用缓存中的值，通过pipeline一次从redis读取
+        UserDTO user = UserHolder.getUser();
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zSetCommands().zScore(BLOG_HOT_KEY.getBytes(StandardCharsets.UTF_8),
+                    id.toString().getBytes(StandardCharsets.UTF_8));
+            if (user != null) {
+                connection.zSetCommands().zScore((BLOG_LIKED_KEY + id).getBytes(StandardCharsets.UTF_8),
+                        user.getId().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        // 热门排行榜的分数就是点赞数，排行榜不存在时使用缓存中的值
+        if (scores.get(0) != null) {
+            blog.setLiked(((Double) scores.get(0)).intValue());
+        }
+        if (user != null) {
+            blog.setIsLike(scores.get(1) != null);
+        }
         return Result.ok(blog);
     }
 
+    /**
+     * 根据id查询blog（走缓存，不包含作者和点赞信息）
+     *
+     * @param id
+     * @return
+     */
+    public Blog queryBlogById(Long id) {
+        return cacheClient.queryWithLogicalExpireAndLoad(CACHE_BLOG_KEY, LOCK_BLOG_KEY, id, Blog.class,
+                this::getById, CACHE_BLOG_TTL, TimeUnit.MINUTES);
+    }
+
 
     /**
      * 查询热门blog
@@ -74,18 +156,115 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      * @return
      */
     public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
-        return Result.ok(records);
+        // 1.从redis排行榜中分页查询blog id，代替数据库order by liked + count(*)分页
+        Set<String> idSet = queryHotBlogIds(current);
+        if (idSet == null || idSet.isEmpty()) {
+            // 2.排行榜不存在（例如redis数据丢失），从数据库重建后再查一次
+            if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_HOT_KEY)) || !rebuildHotBlog()) {
+                return Result.ok(Collections.emptyList());
+            }
+            idSet = queryHotBlogIds(current);
+            if (idSet == null || idSet.isEmpty()) {
+                return Result.ok(Collections.emptyList());
+            }
+        }
+        // 3.根据id批量查询blog，保持排行榜中的顺序
+        List<Long> ids = idSet.stream().map(Long::valueOf).collect(Collectors.toList());
+        List<Blog> blogs = queryBlogsByIds(ids);
+        // 批量查询用户
+        this.queryBlogUsers(blogs);
+        blogs.forEach(this::isBlogLiked);
+        return Result.ok(blogs);
+    }
+
+    /**
+     * 查询时间衰减的blog热度榜
+     *
+     * @param typeId
+     * @param current
+     * @return
+     */
+    public Result queryTrendingBlog(Long typeId, Integer current) {
+        long from = (long) (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        long end = from + SystemConstants.MAX_PAGE_SIZE - 1;
+        Set<String> idSet = trendingScorer.rangeBlogs(typeId, from, end);
+        if (idSet == null || idSet.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = idSet.stream().map(Long::valueOf).collect(Collectors.toList());
+        List<Blog> blogs = queryBlogsByIds(ids);
+        this.queryBlogUsers(blogs);
+        blogs.forEach(this::isBlogLiked);
+        return Result.ok(blogs);
+    }
+
+    private Set<String> queryHotBlogIds(Integer current) {
+        long from = (long) (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        long end = from + SystemConstants.MAX_PAGE_SIZE - 1;
+        return stringRedisTemplate.opsForZSet().reverseRange(BLOG_HOT_KEY, from, end);
+    }
+
+    /**
+     * 从数据库重建热门排行榜，只在排行榜不存在时调用
+     * @return 排行榜是否可用
+     */
+    private boolean rebuildHotBlog() {
+        // 获取互斥锁，避免多个请求同时扫描tb_blog
+        SimpleRedisLock lock = new SimpleRedisLock(LOCK_BLOG_HOT_NAME, stringRedisTemplate);
+        if (!lock.tryLock(LOCK_BLOG_HOT_TTL)) {
+            return false;
+        }
+        try {
+            // DoubleCheck，可能别的线程刚重建完
+            if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(BLOG_HOT_KEY))) {
+                return true;
+            }
+            // 先写入临时key，全部写完再rename，避免请求读到只重建了一半的排行榜
+            String tmpKey = BLOG_HOT_KEY + ":rebuild";
+            stringRedisTemplate.delete(tmpKey);
+            long lastId = 0;
+            boolean hasData = false;
+            while (true) {
+                // 按主键分批读取，只查询id和liked，不做深分页
+                List<Blog> blogs = query().select("id", "liked")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + HOT_REBUILD_BATCH_SIZE)
+                        .list();
+                if (blogs.isEmpty()) {
+                    break;
+                }
+                Set<ZSetOperations.TypedTuple<String>> tuples = blogs.stream()
+                        .map(blog -> new DefaultTypedTuple<>(blog.getId().toString(),
+                                blog.getLiked() == null ? 0D : blog.getLiked().doubleValue()))
+                        .collect(Collectors.toSet());
+                stringRedisTemplate.opsForZSet().add(tmpKey, tuples);
+                hasData = true;
+                lastId = blogs.get(blogs.size() - 1).getId();
+                if (blogs.size() < HOT_REBUILD_BATCH_SIZE) {
+                    break;
+                }
+            }
+            if (!hasData) {
+                return false;
+            }
+            stringRedisTemplate.rename(tmpKey, BLOG_HOT_KEY);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 根据id批量查询blog，结果顺序与ids一致
+     * @param ids
+     * @return
+     */
+    private List<Blog> queryBlogsByIds(List<Long> ids) {
+        // 由于数据库默认根据id升序返回查询结果，需要使用order by自定义顺序
+        String idStr = StrUtil.join(",", ids);
+        return query().in("id", ids)
+                .last("ORDER BY FIELD(id, " + idStr + ")").list();
     }
 
     /**
@@ -94,11 +273,34 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      */
     private void queryBlogUser(Blog blog) {
         Long userId = blog.getUserId();
-        User user = userService.getById(userId);
+        UserDTO user = userService.queryUserDTOById(userId);
+        if (user == null) {
+            return;
+        }
         blog.setName(user.getNickName());
         blog.setIcon(user.getIcon());
     }
 
+    /**
+     * 批量查询blog列表关联的用户信息，一次往返查询所有作者
+     * @param blogs
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        Map<Long, UserDTO> userMap = userService.queryUserDTOByIds(userIds).stream()
+                .collect(Collectors.toMap(UserDTO::getId, user -> user));
+        for (Blog blog : blogs) {
+            UserDTO user = userMap.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+    }
+
 
     /**
      * 判断用户是否点赞
@@ -123,7 +325,11 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      * @return
      */
     public Result likeBlog(Long id) {
-
+        // 只需要校验存在并取shopId，走缓存，不查数据库
+        Blog blog = queryBlogById(id);
+        if (blog == null) {
+            return Result.fail("笔记不存在！");
+        }
         String key = BLOG_LIKED_KEY + id;
         // 1. 判断当前用户是否已点赞
         Long userId = UserHolder.getUser().getId();
@@ -134,18 +340,93 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 2. 未点赞，修改数据库+1，并保存用户到redis集合
             boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
             if (isSuccess) {
-                stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                long now = System.currentTimeMillis();
+                stringRedisTemplate.opsForZSet().add(key, userId.toString(), now);
+                updateHotBlog(id, 1);
+                trendingScorer.addBlogEvent(id, blog.getShopId(), queryShopTypeId(blog.getShopId()),
+                        TrendingScorer.LIKE_WEIGHT, now);
             }
         } else {
             // 3. 已点赞，修改数据库-1，将该用户从redis移除
             boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                updateHotBlog(id, -1);
+                // 点赞时间即zset中的分数，按点赞当时计入的热度扣除
+                trendingScorer.removeBlogEvent(id, blog.getShopId(), queryShopTypeId(blog.getShopId()),
+                        TrendingScorer.LIKE_WEIGHT, score.longValue());
             }
         }
         return Result.ok();
     }
 
+    /**
+     * 增量更新热门排行榜中blog的分数
+     * @param id
+     * @param delta
+     */
+    private void updateHotBlog(Long id, int delta) {
+        stringRedisTemplate.execute(BLOG_HOT_SCRIPT, Collections.singletonList(BLOG_HOT_KEY),
+                String.valueOf(delta), id.toString());
+    }
+
+    /**
+     * 查询商铺类型，点赞、发布、评论都会调用，单独缓存商铺的id和类型，缓存空值防止穿透
+     * @param shopId
+     * @return
+     */
+    private Long queryShopTypeId(Long shopId) {
+        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_TYPE_ID_KEY, shopId, Shop.class,
+                id -> shopService.query().select("id", "type_id").eq("id", id).one(),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return shop == null ? null : shop.getTypeId();
+    }
+
+    /**
+     * 笔记新增评论
+     *
+     * @param blog
+     */
+    public void increaseComments(Blog blog) {
+        // 热门blog的评论很密集，如果每条评论都update tb_blog，会在同一行上串行等待行锁
+        // 因此先在redis中累加增量，由定时任务合并后批量写回
+        stringRedisTemplate.opsForHash().increment(BLOG_COMMENTS_DELTA_KEY, blog.getId().toString(), 1);
+        trendingScorer.addBlogEvent(blog.getId(), blog.getShopId(), queryShopTypeId(blog.getShopId()),
+                TrendingScorer.COMMENT_WEIGHT, System.currentTimeMillis());
+    }
+
+    /**
+     * 把redis中累加的评论数增量写回数据库
+     */
+    private void flushComments() {
+        // 集群下多个实例同时执行，需要互斥
+        SimpleRedisLock lock = new SimpleRedisLock(LOCK_BLOG_COMMENTS_FLUSH_NAME, stringRedisTemplate);
+        if (!lock.tryLock(LOCK_BLOG_COMMENTS_FLUSH_TTL)) {
+            return;
+        }
+        try {
+            String flushingKey = BLOG_COMMENTS_DELTA_KEY + ":flushing";
+            // 上次写回中途失败时flushingKey还在，先把它写完，不能被新的增量覆盖
+            if (BooleanUtil.isFalse(stringRedisTemplate.hasKey(flushingKey))) {
+                if (BooleanUtil.isFalse(stringRedisTemplate.hasKey(BLOG_COMMENTS_DELTA_KEY))) {
+                    return;
+                }
+                // rename是原子的，之后新来的评论会累加到新的增量key上
+                stringRedisTemplate.rename(BLOG_COMMENTS_DELTA_KEY, flushingKey);
+            }
+            Map<Object, Object> deltas = stringRedisTemplate.opsForHash().entries(flushingKey);
+            for (Map.Entry<Object, Object> entry : deltas.entrySet()) {
+                Long blogId = Long.valueOf(entry.getKey().toString());
+                long delta = Long.parseLong(entry.getValue().toString());
+                update().setSql("comments = IFNULL(comments, 0) + " + delta).eq("id", blogId).update();
+                // 写完一条删一条，中途失败下次不会重复累加
+                stringRedisTemplate.opsForHash().delete(flushingKey, entry.getKey());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * 获取博客点赞列表
      *
@@ -157,17 +438,50 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (top5 == null || top5.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
-        // 解析出用户id
+        // 解析出用户id，从用户缓存中批量查询，结果保持点赞顺序
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        // 根据用户id查询用户
-        // 由于数据库默认根据id升序返回查询结果，需要使用order by自定义顺序
-        String idStr = StrUtil.join(",", ids);
-        List<UserDTO> userDTOs = userService.query().in("id", ids)
-                .last("ORDER BY FIELD(id, " + idStr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
-        return Result.ok(userDTOs);
+        return Result.ok(userService.queryUserDTOByIds(ids));
+    }
+
+    /**
+     * 滚动分页查询博客点赞列表
+     *
+     * @param id
+     * @param lastScore
+     * @param lastId
+     * @return
+     */
+    public Result queryBlogLikesOfPage(Long id, Double lastScore, Long lastId) {
+        String key = BLOG_LIKED_KEY + id;
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        Set<ZSetOperations.TypedTuple<String>> tuples;
+        if (lastId == null) {
+            // 1.第一页
+            tuples = stringRedisTemplate.opsForZSet().rangeWithScores(key, 0, size - 1);
+        } else {
+            // 2.游标对应的用户仍在点赞列表中，直接从它的排名之后开始查，O(log n)定位，不受同分成员影响
+            Long rank = stringRedisTemplate.opsForZSet().rank(key, lastId.toString());
+            if (rank != null) {
+                tuples = stringRedisTemplate.opsForZSet().rangeWithScores(key, rank + 1, rank + size);
+            } else {
+                // 3.该用户已取消点赞，按分数定位到游标之后
+                double min = lastScore == null ? 0 : Math.nextUp(lastScore);
+                tuples = stringRedisTemplate.opsForZSet().rangeByScoreWithScores(key, min, Double.POSITIVE_INFINITY, 0, size);
+            }
+        }
+        CursorResult cursorResult = new CursorResult();
+        if (tuples == null || tuples.isEmpty()) {
+            cursorResult.setList(Collections.emptyList());
+            return Result.ok(cursorResult);
+        }
+        List<Long> ids = new ArrayList<>(tuples.size());
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            ids.add(Long.valueOf(tuple.getValue()));
+            cursorResult.setLastScore(tuple.getScore());
+        }
+        cursorResult.setLastId(ids.get(ids.size() - 1));
+        cursorResult.setList(userService.queryUserDTOByIds(ids));
+        return Result.ok(cursorResult);
     }
 
     /**
@@ -185,13 +499,19 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增笔记失败！");
         }
-        // 3.查询笔记作者的所有粉丝
-        List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
-        // 4.将blog_id存入粉丝收件箱
-        for (Follow follow : follows) {
-            Long userId = follow.getUserId();
-            stringRedisTemplate.opsForZSet().add(FEED_KEY + userId, blog.getId().toString(), System.currentTimeMillis());
-        }
+        // 新笔记以0分进入热门排行榜，并计入发布事件的热度
+        updateHotBlog(blog.getId(), 0);
+        trendingScorer.addBlogEvent(blog.getId(), blog.getShopId(), queryShopTypeId(blog.getShopId()),
+                TrendingScorer.POST_WEIGHT, System.currentTimeMillis());
+        // 3.从粉丝列表分批查询笔记作者的所有粉丝，4.通过pipeline将blog_id存入这一批粉丝的收件箱
+        byte[] blogId = blog.getId().toString().getBytes(StandardCharsets.UTF_8);
+        long now = System.currentTimeMillis();
+        followService.scanFans(user.getId(), fanIds -> stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String fanId : fanIds) {
+                connection.zSetCommands().zAdd((FEED_KEY + fanId).getBytes(StandardCharsets.UTF_8), now, blogId);
+            }
+            return null;
+        }));
         // 返回id
         return Result.ok(blog.getId());
     }
@@ -230,14 +550,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             }
         }
         // 根据blogIds查询blog，注意指明顺序
-        String idStr = StrUtil.join(",", blogIds);
-        List<Blog> blogs = query().in("id", blogIds)
-                .last("ORDER BY FIELD(id, " + idStr + ")").list();
-        // 查出blog后还要补充发布blog的作者信息，以及当前登陆用户是否给此blog点过赞
-        blogs.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        List<Blog> blogs = queryBlogsByIds(blogIds);
+        // 查出blog后还要补充发布blog的作者信息（一次批量查询），以及当前登陆用户是否给此blog点过赞
+        this.queryBlogUsers(blogs);
+        blogs.forEach(this::isBlogLiked);
 
         ScrollResult scrollResult = new ScrollResult();
         scrollResult.setList(blogs);
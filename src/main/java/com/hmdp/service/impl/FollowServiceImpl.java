@@ -1,24 +1,51 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.CursorResult;
+import com.hmdp.dto.FollowCountDTO;
 import com.hmdp.dto.Result;
-import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Follow;
 import com.hmdp.mapper.FollowMapper;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
@@ -27,6 +54,7 @@ import java.util.stream.Collectors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
 
@@ -36,6 +64,54 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
     @Resource
     private IUserService userService;
 
+    // 重建关注集合时每批从数据库读取的数量
+    private static final int FOLLOWS_REBUILD_BATCH_SIZE = 1000;
+
+    // 后台加载关注/粉丝列表的线程池，以及本实例正在加载的列表
+    private static final ExecutorService FOLLOW_LIST_LOAD_EXECUTOR = Executors.newFixedThreadPool(2);
+    private static final Set<String> LOADING_FOLLOW_LISTS = ConcurrentHashMap.newKeySet();
+
+    // 共同关注较小的集合不超过这个大小时直接SINTER
+    private static final long FOLLOW_COMMON_SINTER_MAX = 5000;
+
+    // 遍历较小的集合时每批SMISMEMBER的数量
+    private static final int FOLLOW_COMMON_SCAN_BATCH = 500;
+
+    // 共同关注最多返回的用户数
+    private static final int FOLLOW_COMMON_MAX = 1000;
+
+    // 关注/粉丝列表加载完成的标记成员，分数为0，查询时跳过
+    private static final String FOLLOW_LIST_SENTINEL = "0";
+
+    // 初始化lua脚本
+    private static final DefaultRedisScript<Long> FOLLOW_SCRIPT;
+    static {
+        FOLLOW_SCRIPT = new DefaultRedisScript<>();
+        FOLLOW_SCRIPT.setLocation(new ClassPathResource("follow.lua"));
+        FOLLOW_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> FOLLOWS_REBUILD_SCRIPT;
+    static {
+        FOLLOWS_REBUILD_SCRIPT = new DefaultRedisScript<>();
+        FOLLOWS_REBUILD_SCRIPT.setLocation(new ClassPathResource("follows_rebuild.lua"));
+        FOLLOWS_REBUILD_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> FOLLOW_LIST_REBUILD_SCRIPT;
+    static {
+        FOLLOW_LIST_REBUILD_SCRIPT = new DefaultRedisScript<>();
+        FOLLOW_LIST_REBUILD_SCRIPT.setLocation(new ClassPathResource("follow_list_rebuild.lua"));
+        FOLLOW_LIST_REBUILD_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> FOLLOW_COUNT_SEED_SCRIPT;
+    static {
+        FOLLOW_COUNT_SEED_SCRIPT = new DefaultRedisScript<>();
+        FOLLOW_COUNT_SEED_SCRIPT.setLocation(new ClassPathResource("follow_count_seed.lua"));
+        FOLLOW_COUNT_SEED_SCRIPT.setResultType(Long.class);
+    }
+
     /**
      * 关注/取关
      *
@@ -45,22 +121,36 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
      */
     public Result follow(Long followUserId, Boolean isFollow) {
         Long userId = UserHolder.getUser().getId();
-        String key = "follows:" + userId.toString();
+        if (userId.equals(followUserId)) {
+            return Result.fail("不能关注自己！");
+        }
         if (isFollow) {
             Follow follow = new Follow();
             follow.setUserId(userId);
             follow.setFollowUserId(followUserId);
-            boolean isSuccess = save(follow);
-            if (isSuccess) {
-                stringRedisTemplate.opsForSet().add(key, followUserId.toString());
+            try {
+                save(follow);
+            } catch (DuplicateKeyException e) {
+                // 已经关注过，计数不能重复累加
+                return Result.ok();
             }
         } else {
             boolean isSuccess = remove(new QueryWrapper<Follow>()
                     .eq("user_id", userId).eq("follow_user_id", followUserId));
-            if (isSuccess) {
-                stringRedisTemplate.opsForSet().remove(key, followUserId.toString());
+            if (!isSuccess) {
+                return Result.ok();
             }
         }
+        // 数据库修改成功后，执行lua脚本原子地更新关注集合、关注列表、粉丝列表和双方的计数，并标记需要重新计算推荐
+        stringRedisTemplate.execute(
+                FOLLOW_SCRIPT,
+                Arrays.asList(FOLLOWS_KEY + userId, FOLLOW_FOLLOWEES_KEY + userId, FOLLOW_FANS_KEY + followUserId,
+                        FOLLOW_COUNT_KEY + userId, FOLLOW_COUNT_KEY + followUserId, RECOMMEND_DIRTY_KEY,
+                        FOLLOWS_VERSION_KEY + userId, FOLLOW_FOLLOWEES_VERSION_KEY + userId,
+                        FOLLOW_FANS_VERSION_KEY + followUserId),
+                userId.toString(), followUserId.toString(), isFollow ? "1" : "0",
+                String.valueOf(System.currentTimeMillis()), String.valueOf(TimeUnit.DAYS.toSeconds(FOLLOW_CACHE_TTL))
+        );
         return Result.ok();
     }
 
@@ -72,29 +162,480 @@ public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> impleme
      */
     public Result followOrNot(Long followUserId) {
         Long userId = UserHolder.getUser().getId();
-        Long count = query().eq("user_id", userId).eq("follow_user_id", followUserId).count();
-        return Result.ok(count.intValue() > 0);
+        byte[] readyKey = (FOLLOWS_READY_KEY + userId).getBytes(StandardCharsets.UTF_8);
+        byte[] key = (FOLLOWS_KEY + userId).getBytes(StandardCharsets.UTF_8);
+        byte[] member = followUserId.toString().getBytes(StandardCharsets.UTF_8);
+        // 1.通过pipeline一次往返判断关注集合是否完整并查询是否关注
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.keyCommands().exists(readyKey);
+            connection.setCommands().sIsMember(key, member);
+            return null;
+        });
+        if (Boolean.TRUE.equals(results.get(0))) {
+            return Result.ok(Boolean.TRUE.equals(results.get(1)));
+        }
+        // 2.关注集合不完整（如redis数据丢失），从数据库重建后再查询，正在重建时直接查询数据库
+        if (!loadFollows(userId)) {
+            return Result.ok(query().eq("user_id", userId).eq("follow_user_id", followUserId).count() > 0);
+        }
+        return Result.ok(BooleanUtil.isTrue(stringRedisTemplate.opsForSet().isMember(FOLLOWS_KEY + userId, followUserId.toString())));
     }
 
     /**
-     * 获取共同关注的用户
+     * 批量查询是否关注
+     *
+     * @param followUserIds
+     * @return 与followUserIds顺序一致
+     */
+    public Result followOrNot(List<Long> followUserIds) {
+        if (followUserIds.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        Long userId = UserHolder.getUser().getId();
+        if (!loadFollows(userId)) {
+            // 正在重建，直接查询数据库
+            Set<Long> followed = query().select("follow_user_id")
+                    .eq("user_id", userId).in("follow_user_id", followUserIds)
+                    .list().stream().map(Follow::getFollowUserId).collect(Collectors.toSet());
+            return Result.ok(followUserIds.stream().map(followed::contains).collect(Collectors.toList()));
+        }
+        // SMISMEMBER一次判断多个用户
+        Object[] members = followUserIds.stream().map(Object::toString).toArray();
+        Map<Object, Boolean> followed = stringRedisTemplate.opsForSet().isMember(FOLLOWS_KEY + userId, members);
+        List<Boolean> result = new ArrayList<>(followUserIds.size());
+        for (Object member : members) {
+            result.add(followed != null && BooleanUtil.isTrue(followed.get(member)));
+        }
+        return Result.ok(result);
+    }
+
+    /**
+     * 保证用户的关注集合follows:{userId}在redis中是完整的
+     * 集合为空时redis中不存在这个key，因此重建完成后额外写入标记follows:ready:{userId}，标记存在才说明集合完整；
+     * 重建时加锁，按id分批从tb_follow读取，没拿到锁的线程不等待，直接返回false由调用方查询数据库；
+     * 重建期间的关注会直接写入集合，取关会递增版本号，每批写入时校验版本号，有变化就放弃本次重建，
+     * 避免把已经取关的用户写回集合；集合和标记都有有效期，不常访问的用户（如推荐计算时抽样到的用户）过期后自动清理
+     *
+     * @param userId
+     * @return 集合完整返回true
+     */
+    public boolean loadFollows(Long userId) {
+        String readyKey = FOLLOWS_READY_KEY + userId;
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(readyKey))) {
+            return true;
+        }
+        SimpleRedisLock lock = new SimpleRedisLock(LOCK_FOLLOWS_REBUILD_NAME + userId, stringRedisTemplate);
+        if (!lock.tryLock(LOCK_FOLLOWS_REBUILD_TTL)) {
+            // 其它线程正在重建
+            return false;
+        }
+        try {
+            // DoubleCheck
+            if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(readyKey))) {
+                return true;
+            }
+            // 读取数据库之前记录版本号
+            List<String> keys = Arrays.asList(FOLLOWS_KEY + userId, readyKey, FOLLOWS_VERSION_KEY + userId);
+            String version = StrUtil.blankToDefault(stringRedisTemplate.opsForValue().get(FOLLOWS_VERSION_KEY + userId), "0");
+            long lastId = 0;
+            while (true) {
+                List<Follow> follows = query().select("id", "follow_user_id")
+                        .eq("user_id", userId)
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + FOLLOWS_REBUILD_BATCH_SIZE)
+                        .list();
+                boolean last = follows.size() < FOLLOWS_REBUILD_BATCH_SIZE;
+                List<String> args = new ArrayList<>(follows.size() + 3);
+                args.add(version);
+                args.add(last ? "1" : "0");
+                args.add(String.valueOf(TimeUnit.DAYS.toSeconds(FOLLOW_CACHE_TTL)));
+                follows.forEach(f -> args.add(f.getFollowUserId().toString()));
+                Long applied = stringRedisTemplate.execute(FOLLOWS_REBUILD_SCRIPT, keys, args.toArray());
+                if (applied == null || applied == 0) {
+                    // 重建期间有取关，下次再重建
+                    return false;
+                }
+                if (last) {
+                    return true;
+                }
+                lastId = follows.get(follows.size() - 1).getId();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 分页获取共同关注的用户
+     * 交集结果缓存一小段时间，翻页时直接从缓存读取；计算交集时根据两个集合的大小选择策略：
+     * 较小的集合不大时直接SINTER；否则用SSCAN分批遍历较小的集合，每批用SMISMEMBER到较大的集合中判断，
+     * 最多取FOLLOW_COMMON_MAX个，保证无论集合多大耗时都有上限
      *
      * @param followUserId
+     * @param current
      * @return
      */
-    public Result followCommons(Long followUserId) {
+    public Result followCommons(Long followUserId, Integer current) {
         Long userId = UserHolder.getUser().getId();
-        String key1 = "follows:" + userId.toString();
-        String key2 = "follows:" + followUserId.toString();
-        Set<String> intersect = stringRedisTemplate.opsForSet().intersect(key1, key2);
-        if (intersect == null || intersect.isEmpty()) {
+        // 1.查询缓存的交集，两个用户的顺序不影响结果
+        String cacheKey = FOLLOW_COMMON_KEY + Math.min(userId, followUserId) + ":" + Math.max(userId, followUserId);
+        String cached = stringRedisTemplate.opsForValue().get(cacheKey);
+        List<Long> commonIds;
+        if (cached != null) {
+            commonIds = StrUtil.isEmpty(cached) ? Collections.emptyList()
+                    : StrUtil.split(cached, ',').stream().map(Long::valueOf).collect(Collectors.toList());
+        } else {
+            // 2.未命中，计算交集并缓存，没有共同关注时缓存空字符串
+            commonIds = intersectFollows(userId, followUserId);
+            stringRedisTemplate.opsForValue().set(cacheKey, StrUtil.join(",", commonIds),
+                    FOLLOW_COMMON_TTL, TimeUnit.SECONDS);
+        }
+        // 3.分页，从缓存中查询用户卡片
+        int from = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        if (from >= commonIds.size()) {
             return Result.ok(Collections.emptyList());
         }
-        List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
-        List<UserDTO> userDTOs = userService.listByIds(ids)
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
-        return Result.ok(userDTOs);
+        List<Long> ids = commonIds.subList(from, Math.min(from + SystemConstants.MAX_PAGE_SIZE, commonIds.size()));
+        return Result.ok(userService.queryUserDTOByIds(ids));
+    }
+
+    /**
+     * 计算两个用户共同关注的用户id，按id排序，最多FOLLOW_COMMON_MAX个
+     */
+    private List<Long> intersectFollows(Long userId, Long followUserId) {
+        if (!loadFollows(userId) || !loadFollows(followUserId)) {
+            // 正在重建，直接查询数据库
+            return query().select("follow_user_id")
+                    .eq("user_id", userId)
+                    .inSql("follow_user_id", "SELECT follow_user_id FROM tb_follow WHERE user_id = " + followUserId)
+                    .orderByAsc("follow_user_id")
+                    .last("LIMIT " + FOLLOW_COMMON_MAX)
+                    .list().stream().map(Follow::getFollowUserId).collect(Collectors.toList());
+        }
+        String key1 = FOLLOWS_KEY + userId;
+        String key2 = FOLLOWS_KEY + followUserId;
+        // 1.通过pipeline一次查询两个集合的大小
+        List<Object> sizes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.setCommands().sCard(key1.getBytes(StandardCharsets.UTF_8));
+            connection.setCommands().sCard(key2.getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+        long size1 = (Long) sizes.get(0);
+        long size2 = (Long) sizes.get(1);
+        if (size1 == 0 || size2 == 0) {
+            return Collections.emptyList();
+        }
+        String smallKey = size1 <= size2 ? key1 : key2;
+        String largeKey = size1 <= size2 ? key2 : key1;
+        List<Long> commonIds = new ArrayList<>();
+        if (Math.min(size1, size2) <= FOLLOW_COMMON_SINTER_MAX) {
+            // 2.较小的集合不大，SINTER的耗时与较小集合的大小成正比，直接计算
+            Set<String> intersect = stringRedisTemplate.opsForSet().intersect(smallKey, largeKey);
+            if (intersect != null) {
+                intersect.forEach(id -> commonIds.add(Long.valueOf(id)));
+            }
+        } else {
+            // 3.集合较大，分批遍历较小的集合，避免一次SINTER阻塞redis
+            ScanOptions options = ScanOptions.scanOptions().count(FOLLOW_COMMON_SCAN_BATCH).build();
+            try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(smallKey, options)) {
+                List<String> batch = new ArrayList<>(FOLLOW_COMMON_SCAN_BATCH);
+                while (cursor.hasNext() && commonIds.size() < FOLLOW_COMMON_MAX) {
+                    batch.add(cursor.next());
+                    if (batch.size() == FOLLOW_COMMON_SCAN_BATCH || !cursor.hasNext()) {
+                        Map<Object, Boolean> isMember = stringRedisTemplate.opsForSet().isMember(largeKey, batch.toArray());
+                        for (String id : batch) {
+                            if (isMember != null && BooleanUtil.isTrue(isMember.get(id))) {
+                                commonIds.add(Long.valueOf(id));
+                            }
+                        }
+                        batch.clear();
+                    }
+                }
+            }
+        }
+        Collections.sort(commonIds);
+        return commonIds.size() > FOLLOW_COMMON_MAX ? new ArrayList<>(commonIds.subList(0, FOLLOW_COMMON_MAX)) : commonIds;
+    }
+
+    /**
+     * 查询用户的粉丝数和关注数，计数不存在时从数据库统计后缓存
+     *
+     * @param userId
+     * @return
+     */
+    public Result queryFollowCount(Long userId) {
+        String key = FOLLOW_COUNT_KEY + userId;
+        List<Object> counts = stringRedisTemplate.opsForHash().multiGet(key, Arrays.asList("fans", "followee"));
+        FollowCountDTO followCount = new FollowCountDTO();
+        if (counts.get(0) != null && counts.get(1) != null) {
+            followCount.setFans(Long.valueOf(counts.get(0).toString()));
+            followCount.setFollowee(Long.valueOf(counts.get(1).toString()));
+            return Result.ok(followCount);
+        }
+        // 未命中，统计数据库，之后由关注/取关原子地增减
+        // 1.统计前记下粉丝、关注列表的版本号，每次关注/取关都会递增
+        String fansVersionKey = FOLLOW_FANS_VERSION_KEY + userId;
+        String followeesVersionKey = FOLLOW_FOLLOWEES_VERSION_KEY + userId;
+        List<String> versions = stringRedisTemplate.opsForValue().multiGet(Arrays.asList(fansVersionKey, followeesVersionKey));
+        long fans = query().eq("follow_user_id", userId).count();
+        long followee = query().eq("user_id", userId).count();
+        followCount.setFans(fans);
+        followCount.setFollowee(followee);
+        // 2.版本号没变时才写入计数，否则统计期间的关注/取关可能既没有被统计到，也没有被增减到计数中
+        Long seeded = stringRedisTemplate.execute(FOLLOW_COUNT_SEED_SCRIPT,
+                Arrays.asList(key, fansVersionKey, followeesVersionKey),
+                versionOf(versions, 0), versionOf(versions, 1), String.valueOf(fans), String.valueOf(followee),
+                String.valueOf(TimeUnit.DAYS.toSeconds(FOLLOW_CACHE_TTL)));
+        if (seeded == null || seeded == 0) {
+            return Result.ok(followCount);
+        }
+        // 3.统计前已经提交、但在写入计数后才执行lua的关注/取关会被重复增减，写入后再统计一次，不一致就删除计数，下次重新统计
+        long fansAfter = query().eq("follow_user_id", userId).count();
+        long followeeAfter = query().eq("user_id", userId).count();
+        List<Object> cached = stringRedisTemplate.opsForHash().multiGet(key, Arrays.asList("fans", "followee"));
+        if (!String.valueOf(fansAfter).equals(String.valueOf(cached.get(0)))
+                || !String.valueOf(followeeAfter).equals(String.valueOf(cached.get(1)))) {
+            stringRedisTemplate.delete(key);
+        }
+        followCount.setFans(fansAfter);
+        followCount.setFollowee(followeeAfter);
+        return Result.ok(followCount);
+    }
+
+    private static String versionOf(List<String> versions, int index) {
+        String version = versions == null ? null : versions.get(index);
+        return version == null ? "0" : version;
+    }
+
+    /**
+     * 滚动分页查询用户的粉丝，按关注时间倒序
+     *
+     * @param userId
+     * @param lastScore 上一页最后一个粉丝的关注时间
+     * @param lastId 上一页最后一个粉丝的id，第一页不传
+     * @return
+     */
+    public Result queryFans(Long userId, Double lastScore, Long lastId) {
+        String key = FOLLOW_FANS_KEY + userId;
+        if (!loadFollowListAsync(key, FOLLOW_FANS_VERSION_KEY + userId, "follow_user_id", "user_id", userId)) {
+            // 列表正在加载，直接分页查询数据库
+            return queryFollowListOfPageFromDb("follow_user_id", "user_id", userId, lastScore, lastId);
+        }
+        return queryFollowListOfPage(key, lastScore, lastId);
+    }
+
+    /**
+     * 滚动分页查询用户关注的人，按关注时间倒序
+     *
+     * @param userId
+     * @param lastScore 上一页最后一个用户的关注时间
+     * @param lastId 上一页最后一个用户的id，第一页不传
+     * @return
+     */
+    public Result queryFollowees(Long userId, Double lastScore, Long lastId) {
+        String key = FOLLOW_FOLLOWEES_KEY + userId;
+        if (!loadFollowListAsync(key, FOLLOW_FOLLOWEES_VERSION_KEY + userId, "user_id", "follow_user_id", userId)) {
+            // 列表正在加载，直接分页查询数据库
+            return queryFollowListOfPageFromDb("user_id", "follow_user_id", userId, lastScore, lastId);
+        }
+        return queryFollowListOfPage(key, lastScore, lastId);
+    }
+
+    /**
+     * 分批遍历用户的全部粉丝id，用于发布笔记时推送到粉丝收件箱
+     * 粉丝列表不完整时不在当前线程加载（粉丝多的用户加载很慢），交给后台加载，这次直接按id分批读取数据库
+     *
+     * @param userId
+     * @param consumer 每次接收一批粉丝id
+     */
+    public void scanFans(Long userId, Consumer<List<String>> consumer) {
+        String key = FOLLOW_FANS_KEY + userId;
+        if (!loadFollowListAsync(key, FOLLOW_FANS_VERSION_KEY + userId, "follow_user_id", "user_id", userId)) {
+            long lastId = 0;
+            while (true) {
+                List<Follow> follows = query().select("id", "user_id")
+                        .eq("follow_user_id", userId)
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + FOLLOWS_REBUILD_BATCH_SIZE)
+                        .list();
+                if (!follows.isEmpty()) {
+                    consumer.accept(follows.stream().map(f -> f.getUserId().toString()).collect(Collectors.toList()));
+                }
+                if (follows.size() < FOLLOWS_REBUILD_BATCH_SIZE) {
+                    return;
+                }
+                lastId = follows.get(follows.size() - 1).getId();
+            }
+        }
+        long start = 0;
+        while (true) {
+            Set<String> members = stringRedisTemplate.opsForZSet().range(key, start, start + FOLLOWS_REBUILD_BATCH_SIZE - 1);
+            if (members == null || members.isEmpty()) {
+                return;
+            }
+            List<String> fanIds = members.stream()
+                    .filter(member -> !FOLLOW_LIST_SENTINEL.equals(member))
+                    .collect(Collectors.toList());
+            if (!fanIds.isEmpty()) {
+                consumer.accept(fanIds);
+            }
+            if (members.size() < FOLLOWS_REBUILD_BATCH_SIZE) {
+                return;
+            }
+            start += FOLLOWS_REBUILD_BATCH_SIZE;
+        }
+    }
+
+    private Result queryFollowListOfPage(String key, Double lastScore, Long lastId) {
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        Set<ZSetOperations.TypedTuple<String>> tuples;
+        if (lastId == null) {
+            // 1.第一页
+            tuples = stringRedisTemplate.opsForZSet().reverseRangeWithScores(key, 0, size - 1);
+        } else {
+            // 2.游标对应的用户仍在列表中，直接从它的排名之后开始查，不受同分成员影响
+            Long rank = stringRedisTemplate.opsForZSet().reverseRank(key, lastId.toString());
+            if (rank != null) {
+                tuples = stringRedisTemplate.opsForZSet().reverseRangeWithScores(key, rank + 1, rank + size);
+            } else {
+                // 3.该用户已取关，按分数定位到游标之后
+                double max = lastScore == null ? 0 : Math.nextDown(lastScore);
+                tuples = stringRedisTemplate.opsForZSet().reverseRangeByScoreWithScores(key, Math.nextUp(0D), max, 0, size);
+            }
+        }
+        CursorResult cursorResult = new CursorResult();
+        List<Long> ids = new ArrayList<>(size);
+        if (tuples != null) {
+            for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                if (FOLLOW_LIST_SENTINEL.equals(tuple.getValue())) {
+                    continue;
+                }
+                ids.add(Long.valueOf(tuple.getValue()));
+                cursorResult.setLastScore(tuple.getScore());
+            }
+        }
+        if (ids.isEmpty()) {
+            cursorResult.setList(Collections.emptyList());
+            cursorResult.setLastScore(null);
+            return Result.ok(cursorResult);
+        }
+        cursorResult.setLastId(ids.get(ids.size() - 1));
+        cursorResult.setList(userService.queryUserDTOByIds(ids));
+        return Result.ok(cursorResult);
+    }
+
+    /**
+     * 列表正在加载时直接从数据库滚动分页，游标与redis中的列表一致：关注时间（毫秒）和用户id
+     */
+    private Result queryFollowListOfPageFromDb(String ownerColumn, String memberColumn, Long ownerId,
+                                               Double lastScore, Long lastId) {
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        QueryChainWrapper<Follow> wrapper = query().select(memberColumn, "create_time").eq(ownerColumn, ownerId);
+        if (lastId != null && lastScore != null) {
+            LocalDateTime lastTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(lastScore.longValue()), ZoneId.systemDefault());
+            wrapper.and(w -> w.lt("create_time", lastTime)
+                    .or(w2 -> w2.eq("create_time", lastTime).lt(memberColumn, lastId)));
+        }
+        List<Follow> follows = wrapper.orderByDesc("create_time").orderByDesc(memberColumn)
+                .last("LIMIT " + size)
+                .list();
+        CursorResult cursorResult = new CursorResult();
+        if (follows.isEmpty()) {
+            cursorResult.setList(Collections.emptyList());
+            return Result.ok(cursorResult);
+        }
+        List<Long> ids = new ArrayList<>(follows.size());
+        for (Follow follow : follows) {
+            ids.add("user_id".equals(memberColumn) ? follow.getUserId() : follow.getFollowUserId());
+        }
+        Follow last = follows.get(follows.size() - 1);
+        cursorResult.setLastScore((double) last.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        cursorResult.setLastId(ids.get(ids.size() - 1));
+        cursorResult.setList(userService.queryUserDTOByIds(ids));
+        return Result.ok(cursorResult);
+    }
+
+    /**
+     * 判断关注/粉丝列表zset在redis中是否完整，不完整时提交到后台加载，不阻塞当前线程
+     *
+     * @return 列表完整返回true，否则调用方应直接查询数据库
+     */
+    private boolean loadFollowListAsync(String key, String versionKey, String ownerColumn, String memberColumn, Long ownerId) {
+        if (stringRedisTemplate.opsForZSet().score(key, FOLLOW_LIST_SENTINEL) != null) {
+            return true;
+        }
+        // 同一个列表在本实例只提交一次
+        if (LOADING_FOLLOW_LISTS.add(key)) {
+            FOLLOW_LIST_LOAD_EXECUTOR.submit(() -> {
+                try {
+                    loadFollowList(key, versionKey, ownerColumn, memberColumn, ownerId);
+                } catch (Exception e) {
+                    log.error("加载关注列表{}异常", key, e);
+                } finally {
+                    LOADING_FOLLOW_LISTS.remove(key);
+                }
+            });
+        }
+        return false;
+    }
+
+    /**
+     * 把关注/粉丝列表zset完整地加载到redis，成员为用户id，分数为关注时间
+     * 加载时按id分批从tb_follow读取，全部写入后再写入标记成员，标记存在才说明列表完整；
+     * 关注/取关都会递增列表的版本号，每批写入时校验版本号，有变化就放弃本次加载，下次查询时重新加载，
+     * 避免把加载期间取关的用户写回列表，或者在列表还不存在时漏掉加载期间的新关注；
+     * 粉丝很多时加载可能超过锁的有效期，与其它实例的加载重叠，由于写入都要校验版本号，重叠的加载结果仍然一致
+     *
+     * @param key
+     * @param versionKey 列表的版本号
+     * @param ownerColumn 列表所属用户对应的列
+     * @param memberColumn 列表成员对应的列
+     * @param ownerId
+     */
+    private void loadFollowList(String key, String versionKey, String ownerColumn, String memberColumn, Long ownerId) {
+        SimpleRedisLock lock = new SimpleRedisLock(LOCK_FOLLOW_LIST_NAME + key, stringRedisTemplate);
+        if (!lock.tryLock(LOCK_FOLLOW_LIST_TTL)) {
+            // 其它实例正在加载
+            return;
+        }
+        try {
+            // DoubleCheck
+            if (stringRedisTemplate.opsForZSet().score(key, FOLLOW_LIST_SENTINEL) != null) {
+                return;
+            }
+            // 读取数据库之前记录版本号
+            List<String> keys = Arrays.asList(key, versionKey);
+            String version = StrUtil.blankToDefault(stringRedisTemplate.opsForValue().get(versionKey), "0");
+            String ttl = String.valueOf(TimeUnit.DAYS.toSeconds(FOLLOW_CACHE_TTL));
+            long lastId = 0;
+            while (true) {
+                List<Follow> follows = query().select("id", memberColumn, "create_time")
+                        .eq(ownerColumn, ownerId)
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + FOLLOWS_REBUILD_BATCH_SIZE)
+                        .list();
+                boolean last = follows.size() < FOLLOWS_REBUILD_BATCH_SIZE;
+                List<String> args = new ArrayList<>(follows.size() * 2 + 3);
+                args.add(version);
+                args.add(last ? "1" : "0");
+                args.add(ttl);
+                for (Follow follow : follows) {
+                    Long memberId = "user_id".equals(memberColumn) ? follow.getUserId() : follow.getFollowUserId();
+                    args.add(String.valueOf(follow.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+                    args.add(memberId.toString());
+                }
+                Long applied = stringRedisTemplate.execute(FOLLOW_LIST_REBUILD_SCRIPT, keys, args.toArray());
+                if (applied == null || applied == 0 || last) {
+                    // 加载期间列表有变化时放弃，下次查询时重新加载
+                    return;
+                }
+                lastId = follows.get(follows.size() - 1).getId();
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 }
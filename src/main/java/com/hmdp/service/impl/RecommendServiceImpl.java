@@ -0,0 +1,254 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.Result;
+import com.hmdp.mapper.FollowMapper;
+import com.hmdp.service.IFollowService;
+import com.hmdp.service.IRecommendService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * <p>
+ * "可能认识的人"推荐服务，基于关注集合follows:{userId}计算二度关系：
+ * 从用户关注的人中随机抽样，再从每个人的关注中随机抽样，按候选人被抽中的次数（共同关注数的估计）排序，
+ * 抽样保证每个用户的计算量有上限；
+ * 结果预先计算好存在recommend:user:{userId}中，关注/取关时用户被加入recommend:dirty，
+ * 后台任务只重新计算这些用户
+ * </p>
+ */
+@Slf4j
+@Service
+public class RecommendServiceImpl implements IRecommendService {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private FollowMapper followMapper;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${hmdp.recommend.bootstrap:false}")
+    private boolean bootstrap;
+
+    // 从用户关注的人中抽样的数量
+    private static final int SAMPLE_FOLLOWS = 200;
+    // 从每个被抽中的人的关注中抽样的数量
+    private static final int SAMPLE_FOLLOWS_OF_FOLLOW = 50;
+    // 每个用户保留的推荐数量
+    private static final int RECOMMEND_SIZE = 50;
+    // 后台任务每次从待计算集合中取出的用户数
+    private static final int DIRTY_BATCH_SIZE = 100;
+    // 后台任务每轮最多计算的用户数，剩下的留到下一轮
+    private static final int MAX_USERS_PER_RUN = 10000;
+    // 后台任务每轮最长的执行时间，毫秒，远小于任务锁的有效期，保证锁过期前一定结束
+    private static final long MAX_MILLIS_PER_RUN = TimeUnit.SECONDS.toMillis(LOCK_RECOMMEND_TTL) / 3;
+    // 后台任务的执行间隔，秒
+    private static final long RECOMMEND_INTERVAL = 60;
+
+    // 创建线程池，定期重新计算推荐结果
+    private static final ScheduledExecutorService RECOMMEND_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    // 保证在当前类初始化完成后就运行
+    @PostConstruct
+    private void init() {
+        if (bootstrap) {
+            RECOMMEND_EXECUTOR.submit(() -> {
+                try {
+                    markAllDirty();
+                } catch (Exception e) {
+                    log.error("初始化推荐任务异常", e);
+                }
+            });
+        }
+        RECOMMEND_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                recommendDirtyUsers();
+            } catch (Exception e) {
+                log.error("计算推荐异常", e);
+            }
+        }, RECOMMEND_INTERVAL, RECOMMEND_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    public Result queryRecommendUsers(Integer current) {
+        Long userId = UserHolder.getUser().getId();
+        String key = RECOMMEND_USER_KEY + userId;
+        long from = (long) (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        Set<String> idSet = stringRedisTemplate.opsForZSet().reverseRange(key, from, from + SystemConstants.MAX_PAGE_SIZE - 1);
+        if (idSet == null || idSet.isEmpty()) {
+            if (current == 1) {
+                // 还没有计算过，交给后台任务计算
+                stringRedisTemplate.opsForSet().add(RECOMMEND_DIRTY_KEY, userId.toString());
+            }
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> ids = idSet.stream().map(Long::valueOf).collect(Collectors.toList());
+        return Result.ok(userService.queryUserDTOByIds(ids));
+    }
+
+    public void recommendFor(Long userId) {
+        String key = FOLLOWS_KEY + userId;
+        if (!followService.loadFollows(userId)) {
+            // 关注集合正在重建，留到下一轮计算
+            stringRedisTemplate.opsForSet().add(RECOMMEND_DIRTY_KEY, userId.toString());
+            return;
+        }
+        // 1.从用户关注的人中随机抽样，count为正数时返回的成员不重复
+        Set<String> sampled = stringRedisTemplate.opsForSet().distinctRandomMembers(key, SAMPLE_FOLLOWS);
+        List<String> follows = sampled == null ? new ArrayList<>() : new ArrayList<>(sampled);
+        // 关注集合正在重建的人本次不参与抽样
+        follows.removeIf(follow -> !followService.loadFollows(Long.valueOf(follow)));
+        Map<String, Integer> counts = new HashMap<>();
+        if (!follows.isEmpty()) {
+            // 2.再从每个人的关注中随机抽样，通过pipeline一次往返完成
+            List<Object> samples = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String follow : follows) {
+                    connection.setCommands().sRandMember(
+                            (FOLLOWS_KEY + follow).getBytes(StandardCharsets.UTF_8), SAMPLE_FOLLOWS_OF_FOLLOW);
+                }
+                return null;
+            });
+            // 3.统计每个候选人被抽中的次数
+            for (Object sample : samples) {
+                if (sample == null) {
+                    continue;
+                }
+                for (Object candidate : (List<?>) sample) {
+                    counts.merge(candidate.toString(), 1, Integer::sum);
+                }
+            }
+            counts.remove(userId.toString());
+        }
+        // 4.去掉已经关注的人
+        List<String> candidates = new ArrayList<>(counts.keySet());
+        if (!candidates.isEmpty()) {
+            Map<Object, Boolean> followed = stringRedisTemplate.opsForSet().isMember(key, candidates.toArray());
+            if (followed != null) {
+                followed.forEach((candidate, isFollowed) -> {
+                    if (Boolean.TRUE.equals(isFollowed)) {
+                        counts.remove(candidate.toString());
+                    }
+                });
+            }
+        }
+        // 5.取次数最多的RECOMMEND_SIZE个，覆盖写入推荐结果
+        List<Map.Entry<String, Integer>> top = counts.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .limit(RECOMMEND_SIZE)
+                .collect(Collectors.toList());
+        byte[] recommendKey = (RECOMMEND_USER_KEY + userId).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.multi();
+            connection.keyCommands().del(recommendKey);
+            for (Map.Entry<String, Integer> entry : top) {
+                connection.zSetCommands().zAdd(recommendKey, entry.getValue(), entry.getKey().getBytes(StandardCharsets.UTF_8));
+            }
+            connection.keyCommands().expire(recommendKey, TimeUnit.DAYS.toSeconds(RECOMMEND_USER_TTL));
+            connection.exec();
+            return null;
+        });
+    }
+
+    /**
+     * 重新计算关注集合有变化的用户
+     */
+    private void recommendDirtyUsers() {
+        // 集群下多个实例同时执行，需要互斥
+        SimpleRedisLock lock = new SimpleRedisLock(LOCK_RECOMMEND_NAME, stringRedisTemplate);
+        if (!lock.tryLock(LOCK_RECOMMEND_TTL)) {
+            return;
+        }
+        try {
+            // 用户数和执行时间都有上限，超时后剩下的用户放回待计算集合，留到下一轮
+            long deadline = System.currentTimeMillis() + MAX_MILLIS_PER_RUN;
+            int total = 0;
+            while (total < MAX_USERS_PER_RUN && System.currentTimeMillis() < deadline) {
+                List<String> userIds = stringRedisTemplate.opsForSet().pop(RECOMMEND_DIRTY_KEY, DIRTY_BATCH_SIZE);
+                if (userIds == null || userIds.isEmpty()) {
+                    break;
+                }
+                for (int i = 0; i < userIds.size(); i++) {
+                    if (System.currentTimeMillis() >= deadline) {
+                        List<String> rest = userIds.subList(i, userIds.size());
+                        stringRedisTemplate.opsForSet().add(RECOMMEND_DIRTY_KEY, rest.toArray(new String[0]));
+                        break;
+                    }
+                    String userId = userIds.get(i);
+                    try {
+                        recommendFor(Long.valueOf(userId));
+                    } catch (Exception e) {
+                        log.error("计算用户{}的推荐异常", userId, e);
+                    }
+                    total++;
+                }
+            }
+            if (total > 0) {
+                log.info("推荐计算完成，共{}个用户", total);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 首次上线时通过MyBatis游标流式读取tb_follow中所有关注过别人的用户，分批加入待计算集合，
+     * 不会把整张表加载到内存中
+     */
+    private void markAllDirty() {
+        Integer total = transactionTemplate.execute(status -> {
+            int count = 0;
+            List<String> batch = new ArrayList<>(DIRTY_BATCH_SIZE);
+            try (Cursor<Long> cursor = followMapper.scanFollowerIds()) {
+                for (Long userId : cursor) {
+                    batch.add(userId.toString());
+                    if (batch.size() == DIRTY_BATCH_SIZE) {
+                        stringRedisTemplate.opsForSet().add(RECOMMEND_DIRTY_KEY, batch.toArray(new String[0]));
+                        count += batch.size();
+                        batch.clear();
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (!batch.isEmpty()) {
+                stringRedisTemplate.opsForSet().add(RECOMMEND_DIRTY_KEY, batch.toArray(new String[0]));
+                count += batch.size();
+            }
+            return count;
+        });
+        log.info("已将{}个用户加入推荐计算队列", total);
+    }
+}
@@ -0,0 +1,274 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopGeoService;
+import com.hmdp.utils.ShopTileCache;
+import com.hmdp.utils.SimpleRedisLock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * <p>
+ * 商铺地理位置索引，每个类型一个GEO集合 shop:geo:{typeId}，成员为商铺id
+ * 启动时（或手动触发）按id分批读取tb_shop，通过pipeline批量GEOADD；
+ * 新增、修改商铺时增量同步；定期对比数据库与索引，修复不一致的数据
+ * </p>
+ */
+@Slf4j
+@Service
+public class ShopGeoServiceImpl implements IShopGeoService {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private ShopTileCache shopTileCache;
+
+    @Value("${hmdp.shop.geo-bootstrap:false}")
+    private boolean bootstrap;
+
+    // 每批从数据库或redis读取的商铺数量
+    private static final int BATCH_SIZE = 1000;
+
+    // 索引中的坐标与数据库相差超过这个值（度）时认为位置不对，GEO的精度约为0.6米
+    private static final double POSITION_TOLERANCE = 1e-5;
+
+    // 一致性检查的执行间隔，小时
+    private static final long CHECK_INTERVAL = 24;
+
+    // 创建线程池，启动时加载索引，并定期检查一致性
+    private static final ScheduledExecutorService SHOP_GEO_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    // 保证在当前类初始化完成后就运行
+    @PostConstruct
+    private void init() {
+        if (bootstrap) {
+            SHOP_GEO_EXECUTOR.submit(() -> {
+                try {
+                    loadAll();
+                } catch (Exception e) {
+                    log.error("加载商铺地理位置索引异常", e);
+                }
+            });
+        }
+        SHOP_GEO_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                checkConsistency();
+            } catch (Exception e) {
+                log.error("商铺地理位置索引一致性检查异常", e);
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.HOURS);
+    }
+
+    public int loadAll() {
+        // 集群下多个实例同时执行，需要互斥
+        SimpleRedisLock lock = new SimpleRedisLock(LOCK_SHOP_GEO_NAME, stringRedisTemplate);
+        if (!lock.tryLock(LOCK_SHOP_GEO_TTL)) {
+            log.info("商铺地理位置索引正在被其它任务处理");
+            return 0;
+        }
+        try {
+            int total = 0;
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = queryShopPage(lastId);
+                if (shops.isEmpty()) {
+                    break;
+                }
+                geoAdd(shops);
+                total += shops.size();
+                lastId = shops.get(shops.size() - 1).getId();
+                if (shops.size() < BATCH_SIZE) {
+                    break;
+                }
+            }
+            log.info("商铺地理位置索引加载完成，共{}个商铺", total);
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void sync(Shop shop, Shop old) {
+        // 原位置附近的网格缓存中有修改前的商铺，无论新数据是否完整都要删除
+        if (old != null && old.getTypeId() != null && old.getX() != null && old.getY() != null) {
+            shopTileCache.evict(old.getTypeId(), old.getX(), old.getY());
+        }
+        if (shop == null || shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        String member = shop.getId().toString();
+        // 类型变化，先从原类型的索引中删除
+        if (old != null && old.getTypeId() != null && !old.getTypeId().equals(shop.getTypeId())) {
+            stringRedisTemplate.opsForZSet().remove(SHOP_GEO_KEY + old.getTypeId(), member);
+        }
+        // GEOADD对已存在的成员会更新坐标
+        stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + shop.getTypeId(), new Point(shop.getX(), shop.getY()), member);
+        // 类型和位置都没变时，上面已经删除过同一批网格
+        if (old == null || !shop.getTypeId().equals(old.getTypeId())
+                || !shop.getX().equals(old.getX()) || !shop.getY().equals(old.getY())) {
+            shopTileCache.evict(shop.getTypeId(), shop.getX(), shop.getY());
+        }
+    }
+
+    public Map<String, Integer> checkConsistency() {
+        Map<String, Integer> report = new HashMap<>();
+        SimpleRedisLock lock = new SimpleRedisLock(LOCK_SHOP_GEO_NAME, stringRedisTemplate);
+        if (!lock.tryLock(LOCK_SHOP_GEO_TTL)) {
+            log.info("商铺地理位置索引正在被其它任务处理");
+            return report;
+        }
+        try {
+            report.put("added", addMissing());
+            report.put("removed", removeStale());
+            log.info("商铺地理位置索引一致性检查完成，补上{}个，删除{}个", report.get("added"), report.get("removed"));
+            return report;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 按id分批遍历数据库，通过pipeline查询每个商铺在索引中的坐标，缺失或位置不对的重新GEOADD
+     */
+    private int addMissing() {
+        int added = 0;
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = queryShopPage(lastId);
+            if (shops.isEmpty()) {
+                break;
+            }
+            List<Object> positions = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Shop shop : shops) {
+                    connection.geoCommands().geoPos((SHOP_GEO_KEY + shop.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                            shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+            List<Shop> missing = new ArrayList<>();
+            for (int i = 0; i < shops.size(); i++) {
+                Shop shop = shops.get(i);
+                List<?> position = (List<?>) positions.get(i);
+                Point point = position == null || position.isEmpty() ? null : (Point) position.get(0);
+                if (point == null
+                        || Math.abs(point.getX() - shop.getX()) > POSITION_TOLERANCE
+                        || Math.abs(point.getY() - shop.getY()) > POSITION_TOLERANCE) {
+                    missing.add(shop);
+                }
+            }
+            geoAdd(missing);
+            added += missing.size();
+            lastId = shops.get(shops.size() - 1).getId();
+            if (shops.size() < BATCH_SIZE) {
+                break;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * 遍历每个类型的索引，删除数据库中已不存在或类型已变化的商铺
+     */
+    private int removeStale() {
+        int removed = 0;
+        List<String> keys = new ArrayList<>();
+        ScanOptions keyOptions = ScanOptions.scanOptions().match(SHOP_GEO_KEY + "*").count(BATCH_SIZE).build();
+        try (Cursor<String> cursor = stringRedisTemplate.scan(keyOptions)) {
+            cursor.forEachRemaining(keys::add);
+        }
+        for (String key : keys) {
+            // 只处理 shop:geo:{typeId}，跳过其它以此为前缀的key
+            String suffix = key.substring(SHOP_GEO_KEY.length());
+            if (suffix.isEmpty() || !suffix.chars().allMatch(Character::isDigit)) {
+                continue;
+            }
+            Long typeId = Long.valueOf(suffix);
+            ScanOptions options = ScanOptions.scanOptions().count(BATCH_SIZE).build();
+            List<String> stale = new ArrayList<>();
+            try (Cursor<ZSetOperations.TypedTuple<String>> cursor = stringRedisTemplate.opsForZSet().scan(key, options)) {
+                List<String> batch = new ArrayList<>(BATCH_SIZE);
+                while (cursor.hasNext()) {
+                    batch.add(cursor.next().getValue());
+                    if (batch.size() == BATCH_SIZE || !cursor.hasNext()) {
+                        stale.addAll(findStale(batch, typeId));
+                        batch.clear();
+                    }
+                }
+            }
+            // 遍历结束后再删除，避免ZSCAN过程中修改集合
+            for (int i = 0; i < stale.size(); i += BATCH_SIZE) {
+                List<String> members = stale.subList(i, Math.min(i + BATCH_SIZE, stale.size()));
+                stringRedisTemplate.opsForZSet().remove(key, members.toArray());
+            }
+            removed += stale.size();
+        }
+        return removed;
+    }
+
+    private List<String> findStale(List<String> members, Long typeId) {
+        List<Long> ids = members.stream().map(Long::valueOf).collect(Collectors.toList());
+        Map<Long, Shop> shopMap = shopMapper.selectList(new QueryWrapper<Shop>().select("id", "type_id").in("id", ids))
+                .stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+        List<String> stale = new ArrayList<>();
+        for (String member : members) {
+            Shop shop = shopMap.get(Long.valueOf(member));
+            if (shop == null || !typeId.equals(shop.getTypeId())) {
+                stale.add(member);
+            }
+        }
+        return stale;
+    }
+
+    private List<Shop> queryShopPage(long lastId) {
+        return shopMapper.selectList(new QueryWrapper<Shop>()
+                .select("id", "type_id", "x", "y")
+                .gt("id", lastId)
+                .isNotNull("type_id").isNotNull("x").isNotNull("y")
+                .orderByAsc("id")
+                .last("LIMIT " + BATCH_SIZE));
+    }
+
+    /**
+     * 通过pipeline批量写入商铺坐标
+     */
+    private void geoAdd(List<Shop> shops) {
+        if (shops.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Shop shop : shops) {
+                connection.geoCommands().geoAdd((SHOP_GEO_KEY + shop.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                        new Point(shop.getX(), shop.getY()), shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+}
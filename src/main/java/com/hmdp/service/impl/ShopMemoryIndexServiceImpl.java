@@ -0,0 +1,184 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopMemoryIndexService;
+import com.hmdp.utils.ShopGridIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>
+ * 进程内的商铺空间索引，每个类型一个ShopGridIndex
+ * 只在 hmdp.shop.nearby.mode=memory 时启用，启动时从tb_shop加载，之后由本实例的商铺写操作增量同步，
+ * 多实例部署时其它实例的修改不会同步过来，因此只适用于单机部署
+ * </p>
+ */
+@Slf4j
+@Service
+public class ShopMemoryIndexServiceImpl implements IShopMemoryIndexService {
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Value("${hmdp.shop.nearby.mode:geo}")
+    private String nearbyMode;
+
+    // 每批从数据库读取的商铺数量
+    private static final int BATCH_SIZE = 1000;
+
+    // 增量区超过这个数量且超过索引大小的1/8时重新构建
+    private static final int MIN_REBUILD_OVERLAY = 1024;
+
+    private static final long[] EMPTY_IDS = new long[0];
+    private static final double[] EMPTY_DISTANCES = new double[0];
+
+    private static final ExecutorService SHOP_MEMORY_INDEX_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    // 加载完成前为null
+    private volatile Map<Long, ShopGridIndex> indexes;
+
+    // 加载期间收到的修改，加载完成后在新索引上重放
+    private List<Shop[]> pending;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled()) {
+            return;
+        }
+        SHOP_MEMORY_INDEX_EXECUTOR.submit(() -> {
+            try {
+                loadAll();
+            } catch (Exception e) {
+                log.error("加载商铺内存空间索引异常", e);
+            }
+        });
+    }
+
+    public int loadAll() {
+        synchronized (this) {
+            pending = new ArrayList<>();
+        }
+        try {
+            Map<Long, Builder> builders = new HashMap<>();
+            int total = 0;
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                        .select("id", "type_id", "x", "y")
+                        .gt("id", lastId)
+                        .isNotNull("type_id").isNotNull("x").isNotNull("y")
+                        .orderByAsc("id")
+                        .last("LIMIT " + BATCH_SIZE));
+                for (Shop shop : shops) {
+                    builders.computeIfAbsent(shop.getTypeId(), k -> new Builder())
+                            .add(shop.getId(), shop.getX(), shop.getY());
+                }
+                total += shops.size();
+                if (shops.size() < BATCH_SIZE) {
+                    break;
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            Map<Long, ShopGridIndex> loaded = new ConcurrentHashMap<>();
+            builders.forEach((typeId, b) -> loaded.put(typeId, new ShopGridIndex(b.ids, b.xs, b.ys, b.size)));
+            synchronized (this) {
+                for (Shop[] change : pending) {
+                    apply(loaded, change[0], change[1]);
+                }
+                indexes = loaded;
+            }
+            log.info("商铺内存空间索引加载完成，共{}个商铺", total);
+            return total;
+        } finally {
+            synchronized (this) {
+                pending = null;
+            }
+        }
+    }
+
+    public ShopGridIndex.Neighbors nearest(Long typeId, double x, double y, double radius, int k) {
+        Map<Long, ShopGridIndex> current = indexes;
+        if (current == null) {
+            return null;
+        }
+        ShopGridIndex index = current.get(typeId);
+        if (index == null) {
+            return new ShopGridIndex.Neighbors(EMPTY_IDS, EMPTY_DISTANCES);
+        }
+        return index.nearest(x, y, radius, k);
+    }
+
+    public synchronized void sync(Shop shop, Shop old) {
+        if (!enabled() || shop == null) {
+            return;
+        }
+        if (pending != null) {
+            pending.add(new Shop[]{shop, old});
+        }
+        // 重新加载期间旧索引仍在使用，同样需要更新
+        if (indexes != null) {
+            apply(indexes, shop, old);
+        }
+    }
+
+    private void apply(Map<Long, ShopGridIndex> target, Shop shop, Shop old) {
+        long id = shop.getId();
+        if (old != null && old.getTypeId() != null && !old.getTypeId().equals(shop.getTypeId())) {
+            ShopGridIndex oldIndex = target.get(old.getTypeId());
+            if (oldIndex != null) {
+                oldIndex.remove(id);
+            }
+        }
+        if (shop.getTypeId() == null) {
+            return;
+        }
+        ShopGridIndex index = target.computeIfAbsent(shop.getTypeId(),
+                k -> new ShopGridIndex(EMPTY_IDS, EMPTY_DISTANCES, EMPTY_DISTANCES, 0));
+        if (shop.getX() == null || shop.getY() == null) {
+            index.remove(id);
+            return;
+        }
+        index.put(id, shop.getX(), shop.getY());
+        // 增量区需要逐个扫描，过大时合并到基础数组
+        int overlay = index.overlaySize();
+        if (overlay > MIN_REBUILD_OVERLAY && overlay > index.size() / 8) {
+            target.put(shop.getTypeId(), index.rebuild());
+        }
+    }
+
+    private boolean enabled() {
+        return "memory".equals(nearbyMode);
+    }
+
+    /**
+     * 加载时按类型收集坐标的可扩容数组
+     */
+    private static class Builder {
+        long[] ids = new long[64];
+        double[] xs = new double[64];
+        double[] ys = new double[64];
+        int size;
+
+        void add(long id, double x, double y) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            ids[size] = id;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopSearchService;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * 商铺多条件搜索，过滤、排序和分页都在内存索引ShopSearchIndex中完成，只按id查询当前页的商铺详情
+ * 启动时从tb_shop加载，之后由本实例的商铺写操作增量同步，并定期全量重建，修正其它实例的修改
+ * </p>
+ */
+@Slf4j
+@Service
+public class ShopSearchServiceImpl implements IShopSearchService {
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Value("${hmdp.shop.search.bootstrap:true}")
+    private boolean bootstrap;
+
+    // 每批从数据库读取的商铺数量
+    private static final int BATCH_SIZE = 1000;
+
+    // 输入提示返回的商铺数量
+    private static final int SUGGEST_SIZE = 10;
+
+    // 全量重建的间隔，小时
+    private static final long RELOAD_INTERVAL = 6;
+
+    private static final ScheduledExecutorService SHOP_SEARCH_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    // 加载完成前为null
+    private volatile ShopSearchIndex index;
+
+    // 加载期间收到的修改，加载完成后在新索引上重放
+    private List<Shop> pending;
+
+    @PostConstruct
+    private void init() {
+        if (!bootstrap) {
+            return;
+        }
+        SHOP_SEARCH_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                loadAll();
+            } catch (Exception e) {
+                log.error("加载商铺搜索索引异常", e);
+            }
+        }, 0, RELOAD_INTERVAL, TimeUnit.HOURS);
+    }
+
+    public int loadAll() {
+        synchronized (this) {
+            pending = new ArrayList<>();
+        }
+        try {
+            ShopSearchIndex loaded = new ShopSearchIndex();
+            int total = 0;
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                        .select("id", "type_id", "name", "area", "avg_price", "score", "sold", "x", "y")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + BATCH_SIZE));
+                for (Shop shop : shops) {
+                    loaded.put(shop);
+                }
+                total += shops.size();
+                if (shops.size() < BATCH_SIZE) {
+                    break;
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+            synchronized (this) {
+                for (Shop shop : pending) {
+                    loaded.put(shop);
+                }
+                index = loaded;
+            }
+            log.info("商铺搜索索引加载完成，共{}个商铺", total);
+            return total;
+        } finally {
+            synchronized (this) {
+                pending = null;
+            }
+        }
+    }
+
+    public Result search(Long typeId, String area, Long minPrice, Long maxPrice, Integer minScore,
+                         Double x, Double y, Double distance, String sortBy, Integer current) {
+        if (!ShopSearchIndex.SORT_BY_DISTANCE.equals(sortBy) && !ShopSearchIndex.SORT_BY_SCORE.equals(sortBy)
+                && !ShopSearchIndex.SORT_BY_SOLD.equals(sortBy)) {
+            return Result.fail("不支持的排序方式！");
+        }
+        // 每次搜索都要在内存中保留前from+size个结果，限制页码
+        if (current == null || current < 1 || current > SystemConstants.SHOP_SEARCH_MAX_PAGE) {
+            return Result.fail("页码不正确！");
+        }
+        boolean hasPoint = x != null && y != null;
+        if ((ShopSearchIndex.SORT_BY_DISTANCE.equals(sortBy) || distance != null) && !hasPoint) {
+            return Result.fail("按距离搜索需要提供坐标！");
+        }
+        ShopSearchIndex searchIndex = index;
+        if (searchIndex == null) {
+            return Result.fail("搜索服务正在启动，请稍后再试！");
+        }
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        ShopSearchIndex.Hits hits = searchIndex.search(typeId, StrUtil.emptyToNull(area), minPrice, maxPrice, minScore,
+                x, y, distance, sortBy, from, SystemConstants.DEFAULT_PAGE_SIZE);
+        if (hits.ids.length == 0) {
+            return Result.ok(Collections.emptyList(), (long) hits.total);
+        }
+
+        // 根据shopIds查询，手动指定顺序
+        List<Long> shopIds = new ArrayList<>(hits.ids.length);
+        Map<Long, Double> distanceMap = new HashMap<>(hits.ids.length);
+        for (int i = 0; i < hits.ids.length; i++) {
+            shopIds.add(hits.ids[i]);
+            if (hasPoint && !Double.isNaN(hits.distances[i])) {
+                distanceMap.put(hits.ids[i], hits.distances[i]);
+            }
+        }
+        List<Shop> shops = queryShopsByIds(shopIds);
+        for (Shop shop : shops) {
+            shop.setDistance(distanceMap.get(shop.getId()));
+        }
+        return Result.ok(shops, (long) hits.total);
+    }
+
+    public Result queryShopByName(String name, Integer current) {
+        if (current > SystemConstants.SHOP_SEARCH_MAX_PAGE) {
+            return Result.fail("页码不正确！");
+        }
+        ShopSearchIndex searchIndex = index;
+        if (StrUtil.isBlank(name) || searchIndex == null) {
+            // 没有关键字或索引还在加载，按原来的方式分页查询
+            Page<Shop> page = shopMapper.selectPage(new Page<>(current, SystemConstants.MAX_PAGE_SIZE),
+                    new QueryWrapper<Shop>().like(StrUtil.isNotBlank(name), "name", name));
+            return Result.ok(page.getRecords());
+        }
+        int from = Math.max(current - 1, 0) * SystemConstants.MAX_PAGE_SIZE;
+        ShopSearchIndex.Hits hits = searchIndex.searchByName(name, false, from, SystemConstants.MAX_PAGE_SIZE);
+        if (hits.ids.length == 0) {
+            return Result.ok(Collections.emptyList());
+        }
+        List<Long> shopIds = new ArrayList<>(hits.ids.length);
+        for (long id : hits.ids) {
+            shopIds.add(id);
+        }
+        return Result.ok(queryShopsByIds(shopIds));
+    }
+
+    public Result suggestShopName(String prefix) {
+        ShopSearchIndex searchIndex = index;
+        if (StrUtil.isBlank(prefix) || searchIndex == null) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 名称直接从索引中取，不查询数据库
+        ShopSearchIndex.Hits hits = searchIndex.searchByName(prefix, true, 0, SUGGEST_SIZE);
+        List<Shop> shops = new ArrayList<>(hits.ids.length);
+        for (long id : hits.ids) {
+            Shop shop = new Shop();
+            shop.setId(id);
+            shop.setName(searchIndex.nameOf(id));
+            shops.add(shop);
+        }
+        return Result.ok(shops);
+    }
+
+    /**
+     * 根据id批量查询商铺，保持ids的顺序
+     */
+    private List<Shop> queryShopsByIds(List<Long> ids) {
+        String idStr = StrUtil.join(",", ids);
+        return shopMapper.selectList(new QueryWrapper<Shop>().in("id", ids)
+                .last("ORDER BY FIELD(id, " + idStr + ")"));
+    }
+
+    public void sync(Shop shop) {
+        if (shop == null) {
+            return;
+        }
+        synchronized (this) {
+            if (pending != null) {
+                pending.add(shop);
+            }
+        }
+        ShopSearchIndex current = index;
+        if (current != null) {
+            current.put(shop);
+        }
+    }
+}
@@ -1,27 +1,42 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopCursorResult;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopGeoService;
+import com.hmdp.service.IShopMemoryIndexService;
+import com.hmdp.service.IShopSearchService;
 import com.hmdp.service.IShopService;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ShopGridIndex;
+import com.hmdp.utils.ShopTileCache;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.TrendingScorer;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.data.redis.domain.geo.GeoShape;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
@@ -45,6 +60,25 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private TrendingScorer trendingScorer;
+
+    @Resource
+    private IShopGeoService shopGeoService;
+
+    @Resource
+    private ShopTileCache shopTileCache;
+
+    @Resource
+    private IShopMemoryIndexService shopMemoryIndexService;
+
+    @Resource
+    private IShopSearchService shopSearchService;
+
+    // 附近商铺的查询方式，geo：每次GEOSEARCH；tile：按geohash网格缓存候选商铺；memory：进程内的空间索引
+    @Value("${hmdp.shop.nearby.mode:geo}")
+    private String nearbyMode;
+
     /**
      * 根据id查询商铺信息
      *
@@ -177,13 +211,60 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null) {
             return Result.fail("店铺id不能为空");
         }
+        // 记录修改前的类型和坐标，需要从原类型的地理位置索引和原位置的网格缓存中删除
+        Shop old = query().select("id", "type_id", "x", "y").eq("id", id).one();
+        if (old == null) {
+            return Result.fail("店铺不存在");
+        }
         // 更新数据库
         updateById(shop);
-        // 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 请求中可能只包含部分字段，读取更新后的完整数据用于同步索引
+        Shop updated = query().select("id", "type_id", "name", "area", "avg_price", "score", "sold", "x", "y")
+                .eq("id", id).one();
+        // 事务提交后再删除缓存、同步地理位置索引和内存索引，
+        // 否则并发的查询可能把未提交的数据重新写入缓存，事务回滚时索引中也会留下没有提交的数据
+        runAfterCommit(() -> {
+            stringRedisTemplate.delete(Arrays.asList(CACHE_SHOP_KEY + id, CACHE_SHOP_TYPE_ID_KEY + id));
+            shopGeoService.sync(updated, old);
+            shopMemoryIndexService.sync(updated, old);
+            shopSearchService.sync(updated);
+        });
         return Result.ok();
     }
 
+    /**
+     * 在当前事务提交后执行，没有事务时直接执行
+     */
+    private static void runAfterCommit(Runnable task) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            task.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * 新增商铺信息
+     *
+     * @param shop
+     * @return 商铺id
+     */
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 加入地理位置索引
+        shopGeoService.sync(shop, null);
+        shopMemoryIndexService.sync(shop, null);
+        // 请求中没有的字段使用数据库的默认值
+        shopSearchService.sync(getById(shop.getId()));
+        return Result.ok(shop.getId());
+    }
+
     /**
      * 根据类型ID查询商铺
      *
@@ -208,12 +289,39 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
         int end  = current * SystemConstants.DEFAULT_PAGE_SIZE;
 
+        if ("tile".equals(nearbyMode)) {
+            // 同一网格内的用户共用候选商铺，按各自的坐标重新计算距离
+            return Result.ok(shopTileCache.query(typeId.longValue(), x, y, from,
+                    SystemConstants.DEFAULT_PAGE_SIZE, this::queryShopsByIds));
+        }
+        if ("memory".equals(nearbyMode)) {
+            ShopGridIndex.Neighbors neighbors = shopMemoryIndexService.nearest(typeId.longValue(), x, y,
+                    SystemConstants.NEARBY_SHOP_RADIUS, end);
+            // 索引还在加载时走redis
+            if (neighbors != null) {
+                if (neighbors.ids.length <= from) {
+                    return Result.ok(Collections.emptyList());
+                }
+                List<Long> shopIds = new ArrayList<>(neighbors.ids.length - from);
+                Map<Long, Double> distanceMap = new HashMap<>(neighbors.ids.length - from);
+                for (int i = from; i < neighbors.ids.length; i++) {
+                    shopIds.add(neighbors.ids[i]);
+                    distanceMap.put(neighbors.ids[i], neighbors.distances[i]);
+                }
+                List<Shop> shops = queryShopsByIds(shopIds);
+                for (Shop shop : shops) {
+                    shop.setDistance(distanceMap.get(shop.getId()));
+                }
+                return Result.ok(shops);
+            }
+        }
+
         String key = SHOP_GEO_KEY + typeId;
 
         // 此处查询的是0～end的数据
         GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(key,
                 GeoReference.fromCoordinate(x, y),
-                new Distance(5000),
+                new Distance(SystemConstants.NEARBY_SHOP_RADIUS),
                 RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(end));
         if (results == null) {
             return Result.ok(Collections.emptyList());
@@ -237,13 +345,124 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         });
 
         // 根据shopIds查询，手动指定顺序
-        String idStr = StrUtil.join(",", shopIds);
-        List<Shop> shops = query().in("id", shopIds)
-                .last("ORDER BY FIELD(id, " + idStr + ")").list();
+        List<Shop> shops = queryShopsByIds(shopIds);
         for (Shop shop : shops) {
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
         }
         return Result.ok(shops);
     }
 
+    /**
+     * 根据类型和坐标滚动分页查询附近的商铺
+     * 第一页通过GEOSEARCHSTORE把5km内的商铺及距离存入临时zset作为快照，之后每页根据游标从快照中截取，
+     * 每页的开销只与页大小有关；快照过期后根据同样的坐标重新生成
+     *
+     * @param typeId
+     * @param x
+     * @param y
+     * @param snapshot 上一页返回的快照id，第一页不传
+     * @param lastDistance 上一页最后一个商铺的距离
+     * @param lastId 上一页最后一个商铺的id，第一页不传
+     * @return
+     */
+    public Result queryShopByTypeOfCursor(Integer typeId, Double x, Double y,
+                                          String snapshot, Double lastDistance, Long lastId) {
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        // 快照id由服务端生成，不合法时重新生成
+        boolean hasSnapshot = snapshot != null && snapshot.matches("[0-9a-f]{32}");
+        String snapshotId = hasSnapshot ? snapshot : UUID.randomUUID().toString(true);
+        String snapshotKey = SHOP_NEARBY_KEY + snapshotId;
+
+        Set<ZSetOperations.TypedTuple<String>> tuples = null;
+        if (hasSnapshot && lastId != null) {
+            // 1.快照还在，从游标的排名之后开始截取
+            tuples = rangeAfter(snapshotKey, lastId, null, size);
+        }
+        if (tuples == null) {
+            // 2.第一页或快照已过期，生成快照
+            byte[] rawSnapshotKey = snapshotKey.getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.geoCommands().geoSearchStore(rawSnapshotKey,
+                        (SHOP_GEO_KEY + typeId).getBytes(StandardCharsets.UTF_8),
+                        GeoReference.fromCoordinate(x, y),
+                        GeoShape.byRadius(new Distance(SystemConstants.NEARBY_SHOP_RADIUS)),
+                        RedisGeoCommands.GeoSearchStoreCommandArgs.newGeoSearchStoreArgs().storeDistance());
+                connection.keyCommands().expire(rawSnapshotKey, SHOP_NEARBY_TTL);
+                return null;
+            });
+            tuples = lastId == null
+                    ? stringRedisTemplate.opsForZSet().rangeWithScores(snapshotKey, 0, size - 1)
+                    : rangeAfter(snapshotKey, lastId, lastDistance, size);
+        }
+
+        // 3.查询商铺，保持快照中的顺序
+        ShopCursorResult result = new ShopCursorResult();
+        result.setSnapshot(snapshotId);
+        if (tuples == null || tuples.isEmpty()) {
+            result.setList(Collections.emptyList());
+            return Result.ok(result);
+        }
+        List<Long> shopIds = new ArrayList<>(tuples.size());
+        Map<Long, Double> distanceMap = new HashMap<>(tuples.size());
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            Long shopId = Long.valueOf(tuple.getValue());
+            shopIds.add(shopId);
+            distanceMap.put(shopId, tuple.getScore());
+            result.setLastDistance(tuple.getScore());
+        }
+        result.setLastId(shopIds.get(shopIds.size() - 1));
+        List<Shop> shops = queryShopsByIds(shopIds);
+        for (Shop shop : shops) {
+            shop.setDistance(distanceMap.get(shop.getId()));
+        }
+        result.setList(shops);
+        return Result.ok(result);
+    }
+
+    /**
+     * 从快照中截取游标之后的一页，游标对应的商铺在快照中时按排名定位，否则按距离定位
+     * @return 快照不存在时返回null
+     */
+    private Set<ZSetOperations.TypedTuple<String>> rangeAfter(String snapshotKey, Long lastId, Double lastDistance, int size) {
+        Long rank = stringRedisTemplate.opsForZSet().rank(snapshotKey, lastId.toString());
+        if (rank != null) {
+            return stringRedisTemplate.opsForZSet().rangeWithScores(snapshotKey, rank + 1, rank + size);
+        }
+        if (lastDistance == null) {
+            return null;
+        }
+        return stringRedisTemplate.opsForZSet().rangeByScoreWithScores(snapshotKey,
+                Math.nextUp(lastDistance), Double.POSITIVE_INFINITY, 0, size);
+    }
+
+    /**
+     * 根据id批量查询商铺，保持ids的顺序
+     */
+    private List<Shop> queryShopsByIds(List<Long> ids) {
+        String idStr = StrUtil.join(",", ids);
+        return query().in("id", ids)
+                .last("ORDER BY FIELD(id, " + idStr + ")").list();
+    }
+
+    /**
+     * 查询时间衰减的商铺热度榜
+     *
+     * @param typeId
+     * @param current
+     * @return
+     */
+    public Result queryTrendingShop(Long typeId, Integer current) {
+        long from = (long) (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        long end = from + SystemConstants.DEFAULT_PAGE_SIZE - 1;
+        Set<String> idSet = trendingScorer.rangeShops(typeId, from, end);
+        if (idSet == null || idSet.isEmpty()) {
+            return Result.ok(Collections.emptyList());
+        }
+        // 根据shopIds查询，手动指定顺序
+        String idStr = StrUtil.join(",", idSet);
+        List<Shop> shops = query().in("id", idSet)
+                .last("ORDER BY FIELD(id, " + idStr + ")").list();
+        return Result.ok(shops);
+    }
+
 }
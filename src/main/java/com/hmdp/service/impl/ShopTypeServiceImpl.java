@@ -3,15 +3,23 @@ package com.hmdp.service.impl;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -21,35 +29,153 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private ObjectMapper objectMapper;
+
+    // 两次检查版本号的最小间隔，毫秒
+    private static final long VERSION_CHECK_INTERVAL = 5000;
+
+    // 店铺类型列表很少变化，在本地保存一份不可变的快照和序列化好的响应，按redis中的版本号判断是否需要重新加载
+    private volatile ShopTypeSnapshot snapshot;
+
+    private volatile long lastCheckTime;
+
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    private static final class ShopTypeSnapshot {
+        final String version;
+        final List<ShopType> list;
+        // 序列化好的Result
+        final byte[] body;
+
+        ShopTypeSnapshot(String version, List<ShopType> list, byte[] body) {
+            this.version = version;
+            this.list = list;
+            this.body = body;
+        }
+    }
+
     /**
      * 查询店铺类型列表
      *
      * @return
      */
     public Result queryShopTypeList() {
+        ShopTypeSnapshot current = currentSnapshot();
+        if (current == null) {
+            return Result.fail("店铺类型列表为空");
+        }
+        return Result.ok(current.list);
+    }
+
+    public byte[] queryShopTypeListBody() {
+        ShopTypeSnapshot current = currentSnapshot();
+        if (current == null) {
+            return toJson(Result.fail("店铺类型列表为空"));
+        }
+        return current.body;
+    }
+
+    /**
+     * 修改店铺类型，增加版本号，各实例在下次检查版本号时按新版本号的缓存key重新加载
+     *
+     * @param shopType
+     * @return
+     */
+    public Result updateShopType(ShopType shopType) {
+        if (shopType.getId() == null) {
+            return Result.fail("店铺类型id不能为空");
+        }
+        if (!updateById(shopType)) {
+            return Result.fail("店铺类型不存在");
+        }
+        // 缓存key中带有版本号，旧版本的缓存不会再被读取，到期后自动删除
+        stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY);
+        // 当前实例立即检查
+        lastCheckTime = 0;
+        return Result.ok();
+    }
+
+    /**
+     * 距离上次检查超过间隔时，由一个线程检查版本号，其它线程继续使用当前的快照
+     * @return 数据库中没有店铺类型时返回null
+     */
+    private ShopTypeSnapshot currentSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current != null && System.currentTimeMillis() - lastCheckTime < VERSION_CHECK_INTERVAL) {
+            return current;
+        }
+        if (current != null) {
+            if (!refreshLock.tryLock()) {
+                return current;
+            }
+        } else {
+            // 还没有快照，只能等待加载
+            refreshLock.lock();
+        }
+        try {
+            current = snapshot;
+            if (current != null && System.currentTimeMillis() - lastCheckTime < VERSION_CHECK_INTERVAL) {
+                return current;
+            }
+            String version;
+            try {
+                version = StrUtil.blankToDefault(stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY), "0");
+            } catch (Exception e) {
+                if (current == null) {
+                    throw e;
+                }
+                // redis不可用时继续使用本地快照
+                log.warn("检查店铺类型列表版本号失败，继续使用本地快照", e);
+                lastCheckTime = System.currentTimeMillis();
+                return current;
+            }
+            if (current == null || !version.equals(current.version)) {
+                current = loadSnapshot(version);
+                snapshot = current;
+            }
+            lastCheckTime = System.currentTimeMillis();
+            return current;
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private ShopTypeSnapshot loadSnapshot(String version) {
+        List<ShopType> shopTypeList;
+        // 缓存key带上版本号：修改前读到旧版本号的实例即使在修改后才写入旧数据，也只会写到旧版本的key中
+        String key = CACHE_SHOP_TYPE_KEY + version;
         // 1.从redis查询缓存
-        String shopTypeListJson = stringRedisTemplate.opsForValue().get("cache:shopTypeList");
+        String shopTypeListJson = stringRedisTemplate.opsForValue().get(key);
         if (StrUtil.isNotBlank(shopTypeListJson)) {
-            // 2.redis中命中，直接返回客户端
-            List<ShopType> shopTypeList = JSONUtil.toList(shopTypeListJson, ShopType.class);
-            return Result.ok(shopTypeList);
+            shopTypeList = JSONUtil.toList(shopTypeListJson, ShopType.class);
+        } else {
+            // 2.未命中，查询数据库
+            shopTypeList = query().orderByAsc("sort").list();
+            if (shopTypeList == null || shopTypeList.isEmpty()) {
+                // 数据库中没有数据，不生成快照，下次请求重新查询
+                return null;
+            }
+            // 3.数据库中查到的数据保存到redis
+            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shopTypeList),
+                    CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
         }
-        // 3.未命中，查询数据库
-        List<ShopType> shopTypeList = query().orderByAsc("sort").list();
+        List<ShopType> list = Collections.unmodifiableList(shopTypeList);
+        return new ShopTypeSnapshot(version, list, toJson(Result.ok(list)));
+    }
 
-        if (shopTypeList == null || shopTypeList.isEmpty()) {
-            // 4. 数据库中没有数据，返回空列表或错误信息
-            return Result.fail("店铺类型列表为空");
+    private byte[] toJson(Result result) {
+        try {
+            return objectMapper.writeValueAsBytes(result);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
         }
-        // 5.数据库中查到的数据保存到redis
-        stringRedisTemplate.opsForValue().set("cache:shopTypeList", JSONUtil.toJsonStr(shopTypeList));
-        // 6.返回客户端
-        return Result.ok(shopTypeList);
     }
 }
@@ -0,0 +1,216 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.SignStatsDTO;
+import com.hmdp.entity.Sign;
+import com.hmdp.mapper.SignMapper;
+import com.hmdp.service.ISignService;
+import com.hmdp.utils.SignBitmap;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * <p>
+ * 签到服务
+ * 每个用户每年一个位图 sign:{userId}:{yyyy}，偏移量为一年中的第几天减一，一年最多46字节；
+ * 统计时一次pipeline读取今年和去年的位图，在本地计算跨月、跨年的连续签到；
+ * 两年前的位图会定期归档到tb_sign中并从redis删除
+ * </p>
+ */
+@Slf4j
+@Service
+public class SignServiceImpl extends ServiceImpl<SignMapper, Sign> implements ISignService {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 归档任务的执行间隔，小时
+    private static final long SIGN_COMPACT_INTERVAL = 24;
+
+    // 创建线程池，定期把往年的签到位图归档到数据库
+    private static final ScheduledExecutorService SIGN_COMPACT_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    // 保证在当前类初始化完成后就运行
+    @PostConstruct
+    private void init() {
+        SIGN_COMPACT_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                compactColdYears();
+            } catch (Exception e) {
+                log.error("签到记录归档异常", e);
+            }
+        }, 1, SIGN_COMPACT_INTERVAL, TimeUnit.HOURS);
+    }
+
+    /**
+     * 用户签到
+     *
+     * @return
+     */
+    public Result sign() {
+        // 获取当前登陆用户
+        Long userId = UserHolder.getUser().getId();
+        LocalDate today = LocalDate.now();
+        byte[] key = signKey(userId, today.getYear()).getBytes(StandardCharsets.UTF_8);
+        byte[] statsKey = (STATS_SIGN_KEY + StatsServiceImpl.format(today)).getBytes(StandardCharsets.UTF_8);
+        // 通过pipeline同时写入用户今年的位图和全站当天的签到位图（偏移量为用户id）
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.stringCommands().setBit(key, today.getDayOfYear() - 1, true);
+            connection.stringCommands().setBit(statsKey, userId, true);
+            connection.keyCommands().expire(statsKey, TimeUnit.DAYS.toSeconds(STATS_TTL));
+            return null;
+        });
+        return Result.ok();
+    }
+
+    /**
+     * 统计连续签到天数
+     *
+     * @return
+     */
+    public Result signCount() {
+        Long userId = UserHolder.getUser().getId();
+        return Result.ok(querySignStats(userId, LocalDate.now()).getContinuous());
+    }
+
+    /**
+     * 统计连续签到天数、今年最长连续签到天数和本月签到天数
+     *
+     * @return
+     */
+    public Result signStats() {
+        Long userId = UserHolder.getUser().getId();
+        return Result.ok(querySignStats(userId, LocalDate.now()));
+    }
+
+    public SignStatsDTO querySignStats(Long userId, LocalDate today) {
+        int year = today.getYear();
+        byte[] currentKey = signKey(userId, year).getBytes(StandardCharsets.UTF_8);
+        byte[] previousKey = signKey(userId, year - 1).getBytes(StandardCharsets.UTF_8);
+        // 1.通过pipeline一次往返读取今年和去年的位图，直接拿原始字节
+        List<Object> results = stringRedisTemplate.execute((RedisCallback<List<Object>>) connection -> {
+            connection.openPipeline();
+            connection.stringCommands().get(currentKey);
+            connection.stringCommands().get(previousKey);
+            return connection.closePipeline();
+        });
+        byte[] currentBytes = results == null ? null : (byte[]) results.get(0);
+        byte[] previousBytes = results == null ? null : (byte[]) results.get(1);
+
+        // 2.在本地计算今年截止今天的连续签到天数
+        int todayOffset = today.getDayOfYear() - 1;
+        SignBitmap current = SignBitmap.fromRedisBytes(currentBytes, today.lengthOfYear());
+        int continuous = current.streakEndingAt(todayOffset);
+        if (continuous == todayOffset + 1) {
+            // 从1月1日起一直在签到，接上去年的记录，去年的位图已归档时从数据库加载
+            int previousDays = LocalDate.ofYearDay(year - 1, 1).lengthOfYear();
+            SignBitmap previous = previousBytes != null
+                    ? SignBitmap.fromRedisBytes(previousBytes, previousDays)
+                    : loadSignBitmap(userId, year - 1);
+            continuous += previous.streakEndingAt(previousDays - 1);
+        }
+
+        // 3.最长连续签到和本月签到天数
+        SignStatsDTO stats = new SignStatsDTO();
+        stats.setContinuous(continuous);
+        stats.setLongest(Math.max(current.longestStreak(0, todayOffset), continuous));
+        stats.setMonthCount(current.count(today.withDayOfMonth(1).getDayOfYear() - 1, todayOffset));
+        return stats;
+    }
+
+    /**
+     * 从数据库加载已归档年份的签到位图
+     */
+    private SignBitmap loadSignBitmap(Long userId, int year) {
+        SignBitmap bitmap = new SignBitmap(LocalDate.ofYearDay(year, 1).lengthOfYear());
+        List<Sign> signs = query().select("date").eq("user_id", userId).eq("year", year).list();
+        for (Sign sign : signs) {
+            bitmap.set(sign.getDate().getDayOfYear() - 1);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 把两年前及更早的签到位图归档到tb_sign，今年和去年的位图留在redis中用于计算跨年的连续签到
+     */
+    private void compactColdYears() {
+        // 集群下多个实例同时执行，需要互斥
+        SimpleRedisLock lock = new SimpleRedisLock(LOCK_SIGN_COMPACT_NAME, stringRedisTemplate);
+        if (!lock.tryLock(LOCK_SIGN_COMPACT_TTL)) {
+            return;
+        }
+        try {
+            int coldYear = LocalDate.now().getYear() - 2;
+            int total = 0;
+            ScanOptions options = ScanOptions.scanOptions().match(USER_SIGN_KEY + "*").count(1000).build();
+            try (Cursor<String> cursor = stringRedisTemplate.scan(options)) {
+                while (cursor.hasNext()) {
+                    String key = cursor.next();
+                    // key的格式为 sign:{userId}:{yyyy}
+                    String[] parts = key.split(":");
+                    if (parts.length != 3 || parts[2].length() != 4) {
+                        continue;
+                    }
+                    int year = Integer.parseInt(parts[2]);
+                    if (year <= coldYear) {
+                        compactYear(Long.valueOf(parts[1]), year, key);
+                        total++;
+                    }
+                }
+            }
+            if (total > 0) {
+                log.info("签到记录归档完成，共{}个位图", total);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把一个用户一年的签到位图写入tb_sign后删除，中途失败时下次重新归档
+     */
+    private void compactYear(Long userId, int year, String key) {
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(key.getBytes(StandardCharsets.UTF_8)));
+        int days = LocalDate.ofYearDay(year, 1).lengthOfYear();
+        SignBitmap bitmap = SignBitmap.fromRedisBytes(bytes, days);
+        List<Sign> signs = new ArrayList<>();
+        for (int offset = bitmap.nextSetBit(0, days - 1); offset >= 0; offset = bitmap.nextSetBit(offset + 1, days - 1)) {
+            LocalDate date = LocalDate.ofYearDay(year, offset + 1);
+            signs.add(new Sign()
+                    .setUserId(userId)
+                    .setYear(year)
+                    .setMonth(date.getMonthValue())
+                    .setDate(date)
+                    .setIsBackup(false));
+        }
+        // 先删除上次归档失败时可能写入的部分记录，保证重复执行的结果一致
+        remove(new QueryWrapper<Sign>().eq("user_id", userId).eq("year", year));
+        saveBatch(signs);
+        stringRedisTemplate.delete(key);
+    }
+
+    private static String signKey(Long userId, int year) {
+        return USER_SIGN_KEY + userId + ":" + year;
+    }
+}
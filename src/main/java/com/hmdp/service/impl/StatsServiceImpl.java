@@ -0,0 +1,164 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.lang.UUID;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.SignRetentionDTO;
+import com.hmdp.service.IStatsService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * <p>
+ * 全站统计服务
+ * 日活：每天一个HyperLogLog stats:uv:{yyyyMMdd}，12KB内存，误差约0.81%；
+ * 签到：每天一个位图 stats:sign:{yyyyMMdd}，偏移量为用户id，签到人数用BITCOUNT统计，
+ * 一段时间内的活跃和留存用BITOP OR/AND合并位图后统计，耗时只与位图大小有关，不用遍历每个用户的签到key
+ * </p>
+ */
+@Slf4j
+@Service
+public class StatsServiceImpl implements IStatsService {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 一次统计最多合并的天数
+    private static final int MAX_RANGE_DAYS = 366;
+
+    // 本地记录今天已经上报过的用户，每个实例每天对每个用户只PFADD一次
+    private static final int VISIT_CAPACITY = 100000;
+    private final Cache<String, Boolean> visited =
+            CacheUtil.newLRUCache(VISIT_CAPACITY, TimeUnit.DAYS.toMillis(1));
+
+    public void recordVisit(Long userId) {
+        String day = format(LocalDate.now());
+        String visitKey = day + ":" + userId;
+        if (visited.containsKey(visitKey)) {
+            return;
+        }
+        visited.put(visitKey, Boolean.TRUE);
+        byte[] key = (STATS_UV_KEY + day).getBytes(StandardCharsets.UTF_8);
+        // 统计失败不能影响正常请求
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.hyperLogLogCommands().pfAdd(key, userId.toString().getBytes(StandardCharsets.UTF_8));
+                connection.keyCommands().expire(key, TimeUnit.DAYS.toSeconds(STATS_TTL));
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("记录访问用户异常", e);
+        }
+    }
+
+    public Result queryUv(LocalDate date) {
+        Long count = stringRedisTemplate.opsForHyperLogLog().size(STATS_UV_KEY + format(date));
+        return Result.ok(count);
+    }
+
+    public Result queryUvOfRange(LocalDate begin, LocalDate end) {
+        String[] keys = dailyKeys(STATS_UV_KEY, begin, end);
+        if (keys == null) {
+            return Result.fail("日期范围错误！");
+        }
+        // PFCOUNT多个key时返回合并后的去重人数
+        Long count = stringRedisTemplate.opsForHyperLogLog().size(keys);
+        return Result.ok(count);
+    }
+
+    public Result querySignCount(LocalDate date) {
+        byte[] key = (STATS_SIGN_KEY + format(date)).getBytes(StandardCharsets.UTF_8);
+        Long count = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                connection.stringCommands().bitCount(key));
+        return Result.ok(count);
+    }
+
+    public Result querySignActive(LocalDate begin, Integer days) {
+        String[] keys = days == null || days < 1 ? null : dailyKeys(STATS_SIGN_KEY, begin, begin.plusDays(days - 1));
+        if (keys == null) {
+            return Result.fail("日期范围错误！");
+        }
+        byte[] dest = (STATS_TMP_KEY + UUID.randomUUID().toString(true)).getBytes(StandardCharsets.UTF_8);
+        // BITOP OR合并每天的位图，统计后删除临时key
+        List<Object> results = stringRedisTemplate.execute((RedisCallback<List<Object>>) connection -> {
+            connection.openPipeline();
+            connection.stringCommands().bitOp(RedisStringCommands.BitOperation.OR, dest, toBytes(keys));
+            connection.stringCommands().bitCount(dest);
+            connection.keyCommands().del(dest);
+            return connection.closePipeline();
+        });
+        return Result.ok(results == null ? 0L : results.get(1));
+    }
+
+    public Result querySignRetention(LocalDate date, Integer days) {
+        String[] keys = days == null || days < 1 ? null : dailyKeys(STATS_SIGN_KEY, date.plusDays(1), date.plusDays(days));
+        if (keys == null) {
+            return Result.fail("日期范围错误！");
+        }
+        byte[] cohortKey = (STATS_SIGN_KEY + format(date)).getBytes(StandardCharsets.UTF_8);
+        String tmp = STATS_TMP_KEY + UUID.randomUUID().toString(true);
+        byte[] activeKey = (tmp + ":active").getBytes(StandardCharsets.UTF_8);
+        byte[] retainedKey = (tmp + ":retained").getBytes(StandardCharsets.UTF_8);
+        // 1.BITOP OR得到之后days天内签到过的用户，再与当天签到的用户BITOP AND，统计后删除临时key
+        List<Object> results = stringRedisTemplate.execute((RedisCallback<List<Object>>) connection -> {
+            connection.openPipeline();
+            connection.stringCommands().bitOp(RedisStringCommands.BitOperation.OR, activeKey, toBytes(keys));
+            connection.stringCommands().bitOp(RedisStringCommands.BitOperation.AND, retainedKey, cohortKey, activeKey);
+            connection.stringCommands().bitCount(cohortKey);
+            connection.stringCommands().bitCount(retainedKey);
+            connection.keyCommands().del(activeKey, retainedKey);
+            return connection.closePipeline();
+        });
+        // 2.计算留存率
+        SignRetentionDTO retention = new SignRetentionDTO();
+        long cohort = results == null ? 0L : (Long) results.get(2);
+        long retained = results == null ? 0L : (Long) results.get(3);
+        retention.setCohort(cohort);
+        retention.setRetained(retained);
+        retention.setRate(cohort == 0 ? 0D : (double) retained / cohort);
+        return Result.ok(retention);
+    }
+
+    /**
+     * 生成[begin, end]每天的key，范围非法时返回null
+     */
+    private static String[] dailyKeys(String prefix, LocalDate begin, LocalDate end) {
+        if (begin == null || end == null || end.isBefore(begin)) {
+            return null;
+        }
+        long days = end.toEpochDay() - begin.toEpochDay() + 1;
+        if (days > MAX_RANGE_DAYS) {
+            return null;
+        }
+        String[] keys = new String[(int) days];
+        for (int i = 0; i < days; i++) {
+            keys[i] = prefix + format(begin.plusDays(i));
+        }
+        return keys;
+    }
+
+    private static byte[][] toBytes(String[] keys) {
+        byte[][] rawKeys = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            rawKeys[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return rawKeys;
+    }
+
+    public static String format(LocalDate date) {
+        return date.format(DateTimeFormatter.BASIC_ISO_DATE);
+    }
+}
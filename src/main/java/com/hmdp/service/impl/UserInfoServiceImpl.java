@@ -1,11 +1,20 @@
 package com.hmdp.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.Result;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.mapper.UserInfoMapper;
 import com.hmdp.service.IUserInfoService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +26,52 @@ import org.springframework.stereotype.Service;
 @Service
 public class UserInfoServiceImpl extends ServiceImpl<UserInfoMapper, UserInfo> implements IUserInfoService {
 
+    // 城市、介绍的最大长度，与tb_user_info的字段一致
+    private static final int MAX_CITY_LENGTH = 64;
+    private static final int MAX_INTRODUCE_LENGTH = 128;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    public UserInfo queryUserInfoById(Long userId) {
+        // 热门用户的主页访问量大，基于逻辑过期缓存，没有详情的用户缓存空值
+        return cacheClient.queryWithLogicalExpireAndLoad(CACHE_USER_INFO_KEY, LOCK_USER_INFO_KEY, userId,
+                UserInfo.class, this::loadUserInfo, CACHE_USER_INFO_TTL, TimeUnit.MINUTES);
+    }
+
+    private UserInfo loadUserInfo(Long userId) {
+        UserInfo info = getById(userId);
+        if (info == null) {
+            return null;
+        }
+        // 时间字段不对外展示，也不写入缓存
+        info.setCreateTime(null);
+        info.setUpdateTime(null);
+        return info;
+    }
+
+    public Result updateUserInfo(UserInfo userInfo) {
+        Long userId = UserHolder.getUser().getId();
+        if (userInfo.getCity() != null && userInfo.getCity().length() > MAX_CITY_LENGTH) {
+            return Result.fail("城市不能超过" + MAX_CITY_LENGTH + "个字符！");
+        }
+        if (userInfo.getIntroduce() != null && userInfo.getIntroduce().length() > MAX_INTRODUCE_LENGTH) {
+            return Result.fail("个人介绍不能超过" + MAX_INTRODUCE_LENGTH + "个字符！");
+        }
+        // 1.只能修改自己的城市、介绍、性别、生日，粉丝数、积分等字段由系统维护
+        UserInfo profile = new UserInfo()
+                .setUserId(userId)
+                .setCity(userInfo.getCity())
+                .setIntroduce(userInfo.getIntroduce())
+                .setGender(userInfo.getGender())
+                .setBirthday(userInfo.getBirthday());
+        // 2.更新数据库，详情不存在时插入，请求中没有传的字段保留原值
+        baseMapper.saveProfile(profile);
+        // 3.删除缓存，下次查询时重新加载
+        stringRedisTemplate.delete(CACHE_USER_INFO_KEY + userId);
+        return Result.ok();
+    }
 }
@@ -1,9 +1,12 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
@@ -11,23 +14,38 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.LoginSessionCache;
+import com.hmdp.utils.LoginTokenSigner;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SmsSender;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.servlet.http.HttpSession;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
+import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_MAX_LENGTH;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
 
 /**
@@ -46,6 +64,59 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     private UserMapper userMapper;
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
+    @Autowired
+    private CacheClient cacheClient;
+    @Autowired
+    private LoginTokenSigner loginTokenSigner;
+    @Autowired
+    private LoginSessionCache loginSessionCache;
+
+    @Autowired
+    private SmsSender smsSender;
+
+    // 初始化lua脚本
+    private static final DefaultRedisScript<List> SEND_CODE_SCRIPT;
+    static {
+        SEND_CODE_SCRIPT = new DefaultRedisScript<>();
+        SEND_CODE_SCRIPT.setLocation(new ClassPathResource("send_code.lua"));
+        SEND_CODE_SCRIPT.setResultType(List.class);
+    }
+
+    // 短信发送较慢，放到线程池中异步执行
+    private static final ExecutorService SMS_SEND_EXECUTOR = Executors.newFixedThreadPool(4);
+
+    // 本地预过滤：每个IP每分钟在本实例最多请求的次数
+    private static final int LOCAL_IP_LIMIT = 10;
+    // 本地预过滤：最多记录的IP数量，超出后淘汰最久未使用的
+    private static final int LOCAL_IP_CAPACITY = 10000;
+    private static final Cache<String, AtomicInteger> LOCAL_IP_COUNTERS =
+            CacheUtil.newLRUCache(LOCAL_IP_CAPACITY, TimeUnit.MINUTES.toMillis(1));
+    // 被redis判定超出限制的IP，一段时间内直接在本地拒绝
+    private static final Cache<String, Boolean> LOCAL_BLOCKED_IPS =
+            CacheUtil.newLRUCache(LOCAL_IP_CAPACITY, TimeUnit.MINUTES.toMillis(1));
+
+    @Value("${hmdp.user.phone-cache-warmup:false}")
+    private boolean phoneCacheWarmUp;
+
+    // 预热手机号缓存时每批从数据库读取的用户数量
+    private static final int PHONE_CACHE_WARMUP_BATCH_SIZE = 1000;
+
+    // 创建线程池，启动时在后台预热缓存，不阻塞应用启动
+    private static final ExecutorService CACHE_WARMUP_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    // 保证在当前类初始化完成后就运行
+    @PostConstruct
+    private void init() {
+        if (phoneCacheWarmUp) {
+            CACHE_WARMUP_EXECUTOR.submit(() -> {
+                try {
+                    warmUpPhoneCache();
+                } catch (Exception e) {
+                    log.error("手机号缓存预热异常", e);
+                }
+            });
+        }
+    }
 
     /**
      * 发送手机验证码
@@ -53,20 +124,58 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
      * @param phone
      * @param session
      */
-    public Result sendCode(String phone, HttpSession session) {
+    public Result sendCode(String phone, String ip, HttpSession session) {
 
         // 1.校验手机号
         if (RegexUtils.isPhoneInvalid(phone)) {
             // 2.为无效手机号，返回错误信息
             return Result.fail("手机号格式错误！");
         }
-        // 3.符合，生成验证码
-        String code = RandomUtil.randomNumbers(6);
-        // 4.保存验证码到redis
-        stringRedisTemplate.opsForValue().set(LOGIN_CODE_KEY + phone, code, LOGIN_CODE_TTL, TimeUnit.MINUTES);
-        // 5.发送验证码（实际需调用第三方平台如阿里云实现发送短信）
-        log.info("发送短信验证码成功，验证码：{}", code);
-
+        // 3.本地预过滤，被限流的IP和短时间内请求过多的IP直接拒绝，不访问redis
+        if (LOCAL_BLOCKED_IPS.containsKey(ip)
+                || LOCAL_IP_COUNTERS.get(ip, false, AtomicInteger::new).incrementAndGet() > LOCAL_IP_LIMIT) {
+            return Result.fail("请求过于频繁，请稍后再试！");
+        }
+        // 4.生成验证码，执行lua脚本，一次往返完成限流判断、记录发送次数和保存验证码
+        String newCode = RandomUtil.randomNumbers(6);
+        long now = System.currentTimeMillis();
+        List<Object> result = stringRedisTemplate.execute(
+                SEND_CODE_SCRIPT,
+                Arrays.asList(LOGIN_CODE_LIMIT_PHONE_KEY + phone, LOGIN_CODE_LIMIT_IP_KEY + ip, LOGIN_CODE_KEY + phone),
+                String.valueOf(now),
+                String.valueOf(TimeUnit.MINUTES.toMillis(LOGIN_CODE_LIMIT_WINDOW)),
+                LOGIN_CODE_LIMIT_PHONE_MAX.toString(),
+                LOGIN_CODE_LIMIT_IP_MAX.toString(),
+                LOGIN_CODE_INTERVAL.toString(),
+                newCode,
+                String.valueOf(TimeUnit.MINUTES.toSeconds(LOGIN_CODE_TTL)),
+                now + ":" + RandomUtil.randomString(8)
+        );
+        long status = result == null || result.isEmpty() ? -1 : (Long) result.get(0);
+        // 5.判断结果
+        if (status == 1) {
+            return Result.fail("验证码已发送，请稍后再试！");
+        }
+        if (status == 2) {
+            return Result.fail("该手机号获取验证码次数过多，请稍后再试！");
+        }
+        if (status == 3) {
+            // IP超出限制，之后一段时间内直接在本地拒绝
+            LOCAL_BLOCKED_IPS.put(ip, Boolean.TRUE);
+            return Result.fail("请求过于频繁，请稍后再试！");
+        }
+        if (status != 0) {
+            return Result.fail("验证码发送失败！");
+        }
+        // 6.异步发送验证码，不阻塞请求线程；重复请求时沿用仍在有效期内的验证码
+        String code = (String) result.get(1);
+        SMS_SEND_EXECUTOR.submit(() -> {
+            try {
+                smsSender.sendCode(phone, code);
+            } catch (Exception e) {
+                log.error("发送短信验证码异常，手机号：{}", phone, e);
+            }
+        });
         return Result.ok();
 
     }
@@ -92,90 +201,196 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             // 4.不一致，报错
             return Result.fail("验证码过期或错误！");
         }
-        // 5.一致，根据手机号查询用户 select * from tb_user where phone = ?
-        User user = query().eq("phone", phone).one();
+        // 5.一致，根据手机号查询用户，手机号到用户id的映射和用户信息都走缓存
+        Long userId = queryUserIdByPhone(phone);
+        UserDTO userDTO = userId == null ? null : queryUserDTOById(userId);
         // 6.判断用户是否存在
-        if (user == null) {
-            // 7.不存在，创建新用户并保存
-            user = createUserWithPhone(phone);
+        if (userDTO == null) {
+            // 7.缓存中没有（手机号映射缓存了空值，或用户缓存了空值），以数据库为准，不存在时创建新用户并保存
+            User user = query().eq("phone", phone).one();
+            if (user == null) {
+                user = createUserWithPhone(phone);
+            }
+            userDTO = BeanUtil.copyProperties(user, UserDTO.class);
+            cacheUser(user.getId(), userDTO);
+        }
+        if (loginTokenSigner.isEnabled()) {
+            // 8.签名token模式，用户信息直接编码在token中，不需要写redis
+            return Result.ok(loginTokenSigner.sign(userDTO));
         }
         // 8.保存用户信息到redis中(生成随机token作为key并保存到前端作为后续请求鉴权依据，将user信息转换为hash结构存储)
+        // 同时记录到用户的会话索引中，超出会话上限时踢掉最久未活跃的会话
         String token = UUID.randomUUID().toString(true);
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        Map<String, Object> userMap = BeanUtil.beanToMap(userDTO, new HashMap<>(),
-                CopyOptions.create().
-                        setIgnoreNullValue(true).
-                        setFieldValueEditor((fieldName, fieldValue)->fieldValue.toString()));
-        stringRedisTemplate.opsForHash().putAll(LOGIN_USER_KEY + token, userMap);
-//        stringRedisTemplate.expire(LOGIN_USER_KEY + token, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        loginSessionCache.save(token, userDTO);
 
         return Result.ok(token);
     }
 
     /**
-     * 用户签到
+     * 登出
+     *
+     * @param token
+     * @return
      */
-    public Result sign() {
-        // 获取当前登陆用户
-        Long userId = UserHolder.getUser().getId();
-        // 拼接key
-        LocalDateTime now = LocalDateTime.now();
-        String keySuffix = now.format(DateTimeFormatter.ofPattern(":yyyyMM"));
-        String key = USER_SIGN_KEY + userId + keySuffix;
-        // 获取当前天
-        int dayOfMonth = now.getDayOfMonth();
-        // 写入redis进行签到
-        stringRedisTemplate.opsForValue().setBit(key, dayOfMonth - 1, true);
+    public Result logout(String token) {
+        if (StrUtil.isBlank(token)) {
+            return Result.ok();
+        }
+        if (LoginTokenSigner.isSignedToken(token)) {
+            // 签名token加入黑名单
+            if (loginTokenSigner.isEnabled()) {
+                loginTokenSigner.revoke(token);
+            }
+            return Result.ok();
+        }
+        loginSessionCache.remove(token, UserHolder.getUser().getId());
         return Result.ok();
     }
 
     /**
-     * 统计连续签到天数
+     * 退出当前用户在所有设备上的登录
+     *
+     * @return 下线的会话数
+     */
+    public Result logoutAll() {
+        Long userId = UserHolder.getUser().getId();
+        return Result.ok(loginSessionCache.removeAll(userId));
+    }
+
+    /**
+     * 修改当前用户的昵称和头像，只修改请求中传了的字段
      *
+     * @param userDTO
      * @return
      */
-    public Result signCount() {
-        // 获取当前登陆用户
+    public Result updateMe(UserDTO userDTO) {
         Long userId = UserHolder.getUser().getId();
-        // 拼接key
-        LocalDateTime now = LocalDateTime.now();
-        String keySuffix = now.format(DateTimeFormatter.ofPattern(":yyyyMM"));
-        String key = USER_SIGN_KEY + userId + keySuffix;
-        // 获取当前天
-        int dayOfMonth = now.getDayOfMonth();
-
-        // 获取本月截止今天的全部签到记录，返回的是十进制
-        List<Long> result = stringRedisTemplate.opsForValue().bitField(key, BitFieldSubCommands.create().
-                get(BitFieldSubCommands.BitFieldType.unsigned(dayOfMonth))
-                .valueAt(0));
-        if (result == null || result.isEmpty()) {
-            return Result.ok(0);
-        }
-        Long num = result.get(0);
-        if (num == null || num == 0) {
-            return Result.ok(0);
-        }
-
-        // 从最后一位往前遍历，通过与1作与运算判断0/1，遇到第一个为0的位停止
-        int count = 0;
+        String nickName = userDTO.getNickName();
+        String icon = userDTO.getIcon();
+        if (nickName == null && icon == null) {
+            return Result.ok();
+        }
+        if (nickName != null && (StrUtil.isBlank(nickName) || nickName.length() > USER_NICK_NAME_MAX_LENGTH)) {
+            return Result.fail("昵称不能为空且不能超过" + USER_NICK_NAME_MAX_LENGTH + "个字符！");
+        }
+        // 1.更新数据库
+        update().set(nickName != null, "nick_name", nickName)
+                .set(icon != null, "icon", icon)
+                .eq("id", userId)
+                .update();
+        // 2.删除用户卡片缓存，下次查询时重新加载
+        stringRedisTemplate.delete(CACHE_USER_KEY + userId);
+        return Result.ok();
+    }
+
+    /**
+     * 根据id查询用户（走缓存）
+     *
+     * @param id
+     * @return
+     */
+    public UserDTO queryUserDTOById(Long id) {
+        List<UserDTO> users = queryUserDTOByIds(Collections.singletonList(id));
+        return users.isEmpty() ? null : users.get(0);
+    }
+
+    /**
+     * 根据id批量查询用户（走缓存），结果顺序与ids一致
+     *
+     * @param ids
+     * @return
+     */
+    public List<UserDTO> queryUserDTOByIds(List<Long> ids) {
+        return cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 根据手机号查询用户id，缓存空值解决缓存穿透
+     * @param phone
+     * @return 用户不存在时返回null
+     */
+    private Long queryUserIdByPhone(String phone) {
+        String key = CACHE_USER_PHONE_KEY + phone;
+        // 1.从redis查询缓存
+        String idStr = stringRedisTemplate.opsForValue().get(key);
+        if (StrUtil.isNotBlank(idStr)) {
+            return Long.valueOf(idStr);
+        }
+        // 缓存的空值，说明该手机号没有注册
+        if (idStr != null) {
+            return null;
+        }
+        // 2.未命中，查询数据库 select id from tb_user where phone = ?
+        User user = query().select("id").eq("phone", phone).one();
+        if (user == null) {
+            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+        stringRedisTemplate.opsForValue().set(key, user.getId().toString(), CACHE_USER_PHONE_TTL, TimeUnit.DAYS);
+        return user.getId();
+    }
+
+    /**
+     * 按id分批读取tb_user，把手机号到用户id的映射通过pipeline写入缓存
+     */
+    private void warmUpPhoneCache() {
+        long lastId = 0;
+        int total = 0;
         while (true) {
-            if ((num & 1) == 0) {
-                // 未签到，直接结束
+            List<User> users = query().select("id", "phone")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + PHONE_CACHE_WARMUP_BATCH_SIZE)
+                    .list();
+            if (users.isEmpty()) {
+                break;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (User user : users) {
+                    connection.stringCommands().set(
+                            (CACHE_USER_PHONE_KEY + user.getPhone()).getBytes(StandardCharsets.UTF_8),
+                            user.getId().toString().getBytes(StandardCharsets.UTF_8),
+                            Expiration.from(CACHE_USER_PHONE_TTL, TimeUnit.DAYS),
+                            RedisStringCommands.SetOption.upsert());
+                }
+                return null;
+            });
+            total += users.size();
+            lastId = users.get(users.size() - 1).getId();
+            if (users.size() < PHONE_CACHE_WARMUP_BATCH_SIZE) {
                 break;
-            } else {
-                // 签到天数+1
-                count += 1;
             }
-            num >>>= 1;  // 右移一位并赋值给num
         }
-        return Result.ok(count);
+        log.info("手机号缓存预热完成，共{}个用户", total);
     }
 
     private User createUserWithPhone(String phone) {
         User user = new User();
         user.setPhone(phone);
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
-        save(user);
+        try {
+            save(user);
+        } catch (DuplicateKeyException e) {
+            // 同一手机号并发注册，使用已经创建的用户
+            user = query().eq("phone", phone).one();
+            if (user == null) {
+                throw e;
+            }
+        }
+        // 覆盖之前缓存的空值
+        stringRedisTemplate.opsForValue().set(CACHE_USER_PHONE_KEY + phone, user.getId().toString(),
+                CACHE_USER_PHONE_TTL, TimeUnit.DAYS);
         return user;
     }
+
+    /**
+     * 用数据库中查到的用户覆盖用户卡片缓存，包括之前缓存的空值
+     */
+    private void cacheUser(Long userId, UserDTO userDTO) {
+        stringRedisTemplate.opsForValue().set(CACHE_USER_KEY + userId, JSONUtil.toJsonStr(userDTO),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
 }
@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+
+/**
+ * 拦截索引维护等只允许管理员调用的请求；
+ * 这些请求所在的路径（如/shop/**）对LoginInterceptor是放行的，因此这里同时校验登录和管理员身份
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private List<Long> adminUserIds;
+
+    public AdminInterceptor(List<Long> adminUserIds) {
+        this.adminUserIds = adminUserIds;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserDTO user = UserHolder.getUser();
+        // 未登录
+        if (user == null) {
+            response.setStatus(401);
+            return false;
+        }
+        // 不是管理员
+        if (adminUserIds == null || !adminUserIds.contains(user.getId())) {
+            response.setStatus(403);
+            return false;
+        }
+        // 放行
+        return true;
+    }
+}
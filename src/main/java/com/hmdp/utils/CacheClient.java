@@ -5,15 +5,21 @@ import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -75,6 +81,62 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * 批量查询，缓存空值解决缓存穿透，一次MGET查缓存，未命中的数据一次批量查库并通过pipeline写回
+     * @param keyPrefix key的前缀
+     * @param ids id列表
+     * @param type 实体类型
+     * @param dbFallBack 根据未命中的id批量查询数据库，返回id到实体的映射
+     * @param time 过期时间
+     * @param unit 时间单位
+     * @return 与ids顺序一致的结果，不存在的数据不包含在结果中
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> List<R> queryBatchWithPassThrough(String keyPrefix, List<ID> ids, Class<R> type,
+                                                     Function<List<ID>, Map<ID, R>> dbFallBack,
+                                                     Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 1.从redis批量查询缓存
+        List<String> keys = ids.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        List<String> jsons = stringRedisTemplate.opsForValue().multiGet(keys);
+        Map<ID, R> hits = new HashMap<>(ids.size());
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            String json = jsons == null ? null : jsons.get(i);
+            if (StrUtil.isNotBlank(json)) {
+                hits.put(ids.get(i), JSONUtil.toBean(json, type));
+            } else if (json == null) {
+                // 空字符串说明之前缓存了空值，无需再查数据库
+                misses.add(ids.get(i));
+            }
+        }
+        if (!misses.isEmpty()) {
+            // 2.未命中的id批量查询数据库
+            Map<ID, R> loaded = dbFallBack.apply(misses);
+            // 3.通过pipeline一次性写回，数据库中不存在的缓存空值
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : misses) {
+                    R r = loaded.get(id);
+                    byte[] key = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                    if (r == null) {
+                        connection.stringCommands().set(key, new byte[0],
+                                Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES), RedisStringCommands.SetOption.upsert());
+                    } else {
+                        connection.stringCommands().set(key, JSONUtil.toJsonStr(r).getBytes(StandardCharsets.UTF_8),
+                                Expiration.from(time, unit), RedisStringCommands.SetOption.upsert());
+                    }
+                }
+                return null;
+            });
+            hits.putAll(loaded);
+        }
+        // 4.按ids的顺序返回
+        return ids.stream().map(hits::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
 
     // 创建线程池
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
@@ -101,29 +163,73 @@ public class CacheClient {
         if (StrUtil.isBlank(json)) {
             return null;
         }
-        // 3.命中，json反序列化为对象，根据expireTime字段判断是否过期
+        // 3.命中，判断是否过期，过期则异步重建
+        return rebuildIfExpired(key, LOCK_SHOP_KEY + id, json, id, type, dbFallBack, time, unit);
+    }
+
+    /**
+     * 逻辑过期解决缓存击穿，适用于无法提前预热的数据：未命中时同步查库写入缓存，数据库中不存在时缓存空值
+     * @param keyPrefix key的前缀
+     * @param lockKeyPrefix 缓存重建互斥锁key的前缀
+     * @param id
+     * @param type
+     * @param dbFallBack
+     * @param time 逻辑过期时间
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> R queryWithLogicalExpireAndLoad(String keyPrefix, String lockKeyPrefix, ID id, Class<R> type,
+                                                   Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 1.从redis查询缓存
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (json == null) {
+            // 2.未命中，同步查询数据库
+            R r = dbFallBack.apply(id);
+            if (r == null) {
+                // 数据库中没查到，缓存空值避免缓存穿透
+                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                return null;
+            }
+            this.setWithLogicalExpire(key, r, time, unit);
+            return r;
+        }
+        // 3.命中空值
+        if (StrUtil.isBlank(json)) {
+            return null;
+        }
+        // 4.命中，判断是否过期，过期则异步重建
+        return rebuildIfExpired(key, lockKeyPrefix + id, json, id, type, dbFallBack, time, unit);
+    }
+
+    private <R, ID> R rebuildIfExpired(String key, String lockKey, String json, ID id, Class<R> type,
+                                       Function<ID, R> dbFallBack, Long time, TimeUnit unit) {
+        // 1.json反序列化为对象，根据expireTime字段判断是否过期
         RedisData redisData = JSONUtil.toBean(json, RedisData.class);
         LocalDateTime expireTime = redisData.getExpireTime();
         JSONObject data = (JSONObject) redisData.getData();
         R r = JSONUtil.toBean(data, type);
 
         if (expireTime.isAfter(LocalDateTime.now())) {
-            // 4.未过期，直接返回商铺信息
+            // 2.未过期，直接返回
             return r;
         }
-        // 5.过期，需要缓存重建
-        // 5.1 获取互斥锁
-        boolean isLock = tryLock(LOCK_SHOP_KEY + id);
+        // 3.过期，需要缓存重建
+        // 3.1 获取互斥锁
+        boolean isLock = tryLock(lockKey);
         if (isLock) {
-            // 5.2 获取锁成功
+            // 3.2 获取锁成功
             // DoubleCheck
-            json = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
+            json = stringRedisTemplate.opsForValue().get(key);
             if (StrUtil.isNotBlank(json)) {
                 redisData = JSONUtil.toBean(json, RedisData.class);
                 expireTime = redisData.getExpireTime();
                 data = (JSONObject) redisData.getData();
                 r = JSONUtil.toBean(data, type);
                 if (expireTime.isAfter(LocalDateTime.now())) {
+                    unlock(lockKey);
                     return r;
                 }
             }
@@ -139,11 +245,11 @@ public class CacheClient {
                     throw new RuntimeException(e);
                 } finally {
                     // 释放锁
-                    unlock(LOCK_SHOP_KEY + id);
+                    unlock(lockKey);
                 }
             });
         }
-        // 6.返回商铺信息（如果获取锁失败返回的就是旧的商铺信息）
+        // 4.返回数据（如果获取锁失败返回的就是旧数据）
         return r;
     }
 
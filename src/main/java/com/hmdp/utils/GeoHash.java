@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+/**
+ * GeoHash编码，把经纬度平面按精度划分为网格，每个网格用一个base32字符串表示
+ * 精度为n时共5n位，经度占ceil(5n/2)位，纬度占floor(5n/2)位，交替从经度开始
+ */
+public final class GeoHash {
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    // 与redis GEO计算距离使用的地球半径一致，米
+    public static final double EARTH_RADIUS = 6372797.560856;
+
+    private GeoHash() {
+    }
+
+    /**
+     * 计算坐标所在网格的geohash
+     * @param x 经度
+     * @param y 纬度
+     * @param precision 字符数，1~12
+     * @return
+     */
+    public static String encode(double x, double y, int precision) {
+        double minX = -180, maxX = 180, minY = -90, maxY = 90;
+        char[] hash = new char[precision];
+        boolean even = true;
+        for (int i = 0; i < precision; i++) {
+            int ch = 0;
+            for (int b = 0; b < 5; b++) {
+                ch <<= 1;
+                if (even) {
+                    double mid = (minX + maxX) / 2;
+                    if (x >= mid) {
+                        ch |= 1;
+                        minX = mid;
+                    } else {
+                        maxX = mid;
+                    }
+                } else {
+                    double mid = (minY + maxY) / 2;
+                    if (y >= mid) {
+                        ch |= 1;
+                        minY = mid;
+                    } else {
+                        maxY = mid;
+                    }
+                }
+                even = !even;
+            }
+            hash[i] = BASE32[ch];
+        }
+        return new String(hash);
+    }
+
+    /**
+     * 网格的经度跨度，度
+     */
+    public static double cellWidth(int precision) {
+        int bits = precision * 5;
+        return 360.0 / (1L << ((bits + 1) / 2));
+    }
+
+    /**
+     * 网格的纬度跨度，度
+     */
+    public static double cellHeight(int precision) {
+        int bits = precision * 5;
+        return 180.0 / (1L << (bits / 2));
+    }
+
+    /**
+     * 网格中心的坐标
+     * @return {经度, 纬度}
+     */
+    public static double[] center(double x, double y, int precision) {
+        double width = cellWidth(precision);
+        double height = cellHeight(precision);
+        // 网格按跨度从-180、-90开始等分，直接取整即可得到所在网格的左下角
+        double minX = Math.floor((x + 180) / width) * width - 180;
+        double minY = Math.floor((y + 90) / height) * height - 90;
+        return new double[]{minX + width / 2, minY + height / 2};
+    }
+
+    /**
+     * 两点间的球面距离，米
+     */
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+}
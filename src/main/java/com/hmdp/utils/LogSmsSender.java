@@ -0,0 +1,19 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * 本地开发和测试使用的短信发送实现，只把验证码打印到日志
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.sms.sender", havingValue = "log", matchIfMissing = true)
+public class LogSmsSender implements SmsSender {
+
+    @Override
+    public void sendCode(String phone, String code) {
+        log.info("发送短信验证码成功，手机号：{}，验证码：{}", phone, code);
+    }
+}
@@ -0,0 +1,206 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import com.hmdp.dto.UserDTO;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 登录用户的本地缓存
+ * 每个请求都执行HGETALL + EXPIRE会多出两次redis往返，因此在本地缓存token对应的用户，
+ * 本地缓存过期后才重新查询redis并刷新token有效期，即每个token每LOGIN_USER_LOCAL_TTL分钟只访问一次redis；
+ * 登出等场景通过redis发布订阅通知集群中所有实例删除本地缓存；
+ * 每个用户的token记录在login:sessions:{userId}中（分数为最近活跃时间），用于登出、限制会话数和批量下线；
+ * 另外在本地记录token所属的用户id（与token有效期一致），本地缓存过期时一次pipeline即可同时刷新token和会话索引
+ */
+@Component
+public class LoginSessionCache implements MessageListener {
+
+    // 本地最多缓存的token数量，超出后淘汰最久未使用的
+    private static final int CAPACITY = 100000;
+
+    private final Cache<String, UserDTO> cache =
+            CacheUtil.newLRUCache(CAPACITY, TimeUnit.MINUTES.toMillis(LOGIN_USER_LOCAL_TTL));
+
+    // token所属的用户id，只来自本实例的登录或redis中查出的用户，每次访问顺延
+    private final Cache<String, Long> owners =
+            CacheUtil.newLRUCache(CAPACITY, TimeUnit.MINUTES.toMillis(LOGIN_USER_TTL));
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 初始化lua脚本
+    private static final DefaultRedisScript<List> LOGIN_SCRIPT;
+    static {
+        LOGIN_SCRIPT = new DefaultRedisScript<>();
+        LOGIN_SCRIPT.setLocation(new ClassPathResource("login.lua"));
+        LOGIN_SCRIPT.setResultType(List.class);
+    }
+
+    /**
+     * 根据token查询登录用户
+     * @param token
+     * @return 用户不存在或token已过期时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public UserDTO get(String token) {
+        // 1.查询本地缓存，不刷新本地缓存的过期时间，保证过期后能回到redis刷新token
+        UserDTO userDTO = cache.get(token, false);
+        if (userDTO != null) {
+            return userDTO;
+        }
+        // 2.未命中，通过pipeline一次往返查询用户并刷新token有效期，直接拿原始字节结果，不经过序列化器；
+        // 已知token所属用户时，同一个pipeline中一并刷新会话索引中的最近活跃时间
+        byte[] key = (LOGIN_USER_KEY + token).getBytes(StandardCharsets.UTF_8);
+        Long ownerId = owners.get(token);
+        List<Object> results = stringRedisTemplate.execute((RedisCallback<List<Object>>) connection -> {
+            connection.openPipeline();
+            connection.hashCommands().hGetAll(key);
+            connection.keyCommands().expire(key, TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL));
+            if (ownerId != null) {
+                touchSession(connection, ownerId, token);
+            }
+            return connection.closePipeline();
+        });
+        // 3.将查出的hash数据直接按字段转为UserDTO对象，用户不存在时为null
+        userDTO = results == null ? null : UserDTOCodec.fromRawHash((Map<byte[], byte[]>) results.get(0));
+        if (userDTO == null) {
+            if (ownerId != null) {
+                // token已过期，撤销刚才写入会话索引的记录
+                owners.remove(token);
+                stringRedisTemplate.opsForZSet().remove(LOGIN_SESSIONS_KEY + ownerId, token);
+            }
+            return null;
+        }
+        // 4.本实例第一次见到该token（其他实例登录的），单独刷新会话索引，之后的刷新都合并到上面的pipeline中
+        Long userId = userDTO.getId();
+        if (!userId.equals(ownerId)) {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.openPipeline();
+                touchSession(connection, userId, token);
+                return connection.closePipeline();
+            });
+            owners.put(token, userId);
+        }
+        // 5.保存到本地缓存
+        cache.put(token, userDTO);
+        return userDTO;
+    }
+
+    /**
+     * 在pipeline中刷新会话索引中token的最近活跃时间和索引的有效期
+     */
+    private void touchSession(RedisConnection connection, Long userId, String token) {
+        byte[] rawSessionsKey = (LOGIN_SESSIONS_KEY + userId).getBytes(StandardCharsets.UTF_8);
+        connection.zSetCommands().zAdd(rawSessionsKey, System.currentTimeMillis(), token.getBytes(StandardCharsets.UTF_8));
+        connection.keyCommands().expire(rawSessionsKey, TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL));
+    }
+
+    /**
+     * 登录：保存用户信息、记录会话索引，超出会话上限时从索引中移除最久未活跃的会话，在一个lua脚本中完成；
+     * 被踢掉的会话的key在脚本执行前无法确定，由脚本返回后再删除
+     * @param token
+     * @param userDTO
+     */
+    @SuppressWarnings("unchecked")
+    public void save(String token, UserDTO userDTO) {
+        List<String> args = new ArrayList<>();
+        args.add(token);
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.add(String.valueOf(TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL)));
+        args.add(LOGIN_SESSIONS_MAX.toString());
+        UserDTOCodec.toHash(userDTO).forEach((field, value) -> {
+            args.add(field);
+            args.add(value);
+        });
+        List<String> evicted = stringRedisTemplate.execute(LOGIN_SCRIPT,
+                Arrays.asList(LOGIN_USER_KEY + token, LOGIN_SESSIONS_KEY + userDTO.getId()), args.toArray());
+        owners.put(token, userDTO.getId());
+        if (evicted == null || evicted.isEmpty()) {
+            return;
+        }
+        // 删除被踢掉的会话，并通知各实例删除本地缓存
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String t : evicted) {
+                connection.keyCommands().del((LOGIN_USER_KEY + t).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        evicted.forEach(this::evict);
+    }
+
+    /**
+     * 登出：删除会话和会话索引
+     * @param token
+     * @param userId
+     */
+    public void remove(String token, Long userId) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.keyCommands().del((LOGIN_USER_KEY + token).getBytes(StandardCharsets.UTF_8));
+            connection.zSetCommands().zRem((LOGIN_SESSIONS_KEY + userId).getBytes(StandardCharsets.UTF_8),
+                    token.getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+        evict(token);
+    }
+
+    /**
+     * 删除用户的全部会话，只需要读取该用户的会话索引，O(k)
+     * @param userId
+     * @return 删除的会话数
+     */
+    public int removeAll(Long userId) {
+        String sessionsKey = LOGIN_SESSIONS_KEY + userId;
+        Set<String> tokens = stringRedisTemplate.opsForZSet().range(sessionsKey, 0, -1);
+        if (tokens == null || tokens.isEmpty()) {
+            return 0;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String token : tokens) {
+                connection.keyCommands().del((LOGIN_USER_KEY + token).getBytes(StandardCharsets.UTF_8));
+            }
+            connection.keyCommands().del(sessionsKey.getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+        tokens.forEach(this::evict);
+        return tokens.size();
+    }
+
+    /**
+     * 通知集群中所有实例删除token的本地缓存
+     * @param token
+     */
+    public void evict(String token) {
+        cache.remove(token);
+        owners.remove(token);
+        stringRedisTemplate.convertAndSend(LOGIN_EVICT_CHANNEL, token);
+    }
+
+    /**
+     * 收到其他实例的通知，删除本地缓存
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String token = new String(message.getBody(), StandardCharsets.UTF_8);
+        cache.remove(token);
+        owners.remove(token);
+    }
+}
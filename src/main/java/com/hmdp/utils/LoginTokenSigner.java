@@ -0,0 +1,246 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.HashUtil;
+import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_DENYLIST_KEY;
+import static com.hmdp.utils.RedisConstants.LOGIN_SIGNED_TOKEN_TTL;
+
+/**
+ * 签名token：把UserDTO和过期时间直接编码进token并用HMAC签名，请求到来时本地验签即可得到用户，不需要访问redis
+ * token格式：base64url(id|过期时间|昵称长度|昵称头像).base64url(HMAC-SHA256签名)
+ * 签名token无法主动失效，登出时把签名写入redis黑名单（按过期时间自动清理），
+ * 各实例定时把黑名单拉到本地生成布隆过滤器，只有布隆过滤器命中时才需要查询redis确认
+ */
+@Slf4j
+@Component
+public class LoginTokenSigner {
+
+    public static final String MODE_SIGNED = "signed";
+
+    // 本地布隆过滤器的位数（2^20位，128KB）和哈希函数个数
+    private static final int BLOOM_BITS = 1 << 20;
+    private static final int BLOOM_HASHES = 3;
+    // 本地黑名单快照的刷新间隔（秒）
+    private static final long DENYLIST_REFRESH_INTERVAL = 10;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    @Value("${hmdp.login.token-mode:redis}")
+    private String tokenMode;
+
+    @Value("${hmdp.login.token-secret:}")
+    private String tokenSecret;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    // Mac不是线程安全的，每个线程使用自己的实例
+    private ThreadLocal<Mac> hmac;
+
+    // 黑名单布隆过滤器快照，刷新时整体替换
+    private volatile AtomicLongArray denylistBloom = new AtomicLongArray(BLOOM_BITS / 64);
+
+    // 本实例最近登出的签名及登出时间，刷新快照时合并进新的布隆过滤器，避免刷新期间的登出丢失
+    private final Map<String, Long> recentRevoked = new ConcurrentHashMap<>();
+
+    // 创建线程池，定时刷新黑名单快照
+    private static final ScheduledExecutorService DENYLIST_REFRESH_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        if (StrUtil.isBlank(tokenSecret)) {
+            if (isEnabled()) {
+                // 签名模式下密钥决定了谁能签发token，不允许缺省
+                throw new IllegalStateException("hmdp.login.token-mode为signed时必须配置hmdp.login.token-secret");
+            }
+            // 非签名模式不会签发和校验签名token，使用随机密钥即可
+            tokenSecret = RandomUtil.randomString(32);
+        }
+        SecretKeySpec key = new SecretKeySpec(tokenSecret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        hmac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        if (!isEnabled()) {
+            // 非签名模式没有签名token需要登出，不需要同步黑名单
+            return;
+        }
+        DENYLIST_REFRESH_EXECUTOR.scheduleWithFixedDelay(() -> {
+            try {
+                refreshDenylist();
+            } catch (Exception e) {
+                log.error("刷新登录token黑名单异常", e);
+            }
+        }, 0, DENYLIST_REFRESH_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 登录时是否签发签名token
+     */
+    public boolean isEnabled() {
+        return MODE_SIGNED.equals(tokenMode);
+    }
+
+    /**
+     * 判断token是否为签名token（redis模式的token是不含"."的uuid）
+     */
+    public static boolean isSignedToken(String token) {
+        return token.indexOf('.') > 0;
+    }
+
+    /**
+     * 签发token
+     * @param userDTO
+     * @return
+     */
+    public String sign(UserDTO userDTO) {
+        long expireTime = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(LOGIN_SIGNED_TOKEN_TTL);
+        String nickName = StrUtil.nullToEmpty(userDTO.getNickName());
+        String payload = userDTO.getId() + "|" + expireTime + "|" + nickName.length() + "|"
+                + nickName + StrUtil.nullToEmpty(userDTO.getIcon());
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        return ENCODER.encodeToString(payloadBytes) + "." + ENCODER.encodeToString(hmac.get().doFinal(payloadBytes));
+    }
+
+    /**
+     * 校验token
+     * @param token
+     * @return 校验通过返回用户，签名错误、过期或已登出返回null
+     */
+    public UserDTO verify(String token) {
+        int dot = token.indexOf('.');
+        try {
+            // 1.校验签名
+            byte[] payloadBytes = DECODER.decode(token.substring(0, dot));
+            byte[] signature = DECODER.decode(token.substring(dot + 1));
+            if (!MessageDigest.isEqual(hmac.get().doFinal(payloadBytes), signature)) {
+                return null;
+            }
+            // 2.解析用户信息，校验是否过期
+            String payload = new String(payloadBytes, StandardCharsets.UTF_8);
+            int i1 = payload.indexOf('|');
+            int i2 = payload.indexOf('|', i1 + 1);
+            int i3 = payload.indexOf('|', i2 + 1);
+            long expireTime = Long.parseLong(payload.substring(i1 + 1, i2));
+            if (expireTime < System.currentTimeMillis()) {
+                return null;
+            }
+            // 3.校验是否已登出，布隆过滤器没命中说明一定不在黑名单中
+            String signatureStr = token.substring(dot + 1);
+            if (mightBeRevoked(signatureStr)
+                    && stringRedisTemplate.opsForZSet().score(LOGIN_DENYLIST_KEY, signatureStr) != null) {
+                return null;
+            }
+            int nickNameLength = Integer.parseInt(payload.substring(i2 + 1, i3));
+            UserDTO userDTO = new UserDTO();
+            userDTO.setId(Long.valueOf(payload.substring(0, i1)));
+            userDTO.setNickName(payload.substring(i3 + 1, i3 + 1 + nickNameLength));
+            userDTO.setIcon(payload.substring(i3 + 1 + nickNameLength));
+            return userDTO;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            // 格式错误的token
+            return null;
+        }
+    }
+
+    /**
+     * 使token失效
+     * @param token
+     */
+    public void revoke(String token) {
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return;
+        }
+        // 只有合法且未过期的token才需要写入黑名单
+        if (verify(token) == null) {
+            return;
+        }
+        String signatureStr = token.substring(dot + 1);
+        // 黑名单中的分数为清理时间，不早于token的过期时间
+        long expireTime = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(LOGIN_SIGNED_TOKEN_TTL);
+        stringRedisTemplate.opsForZSet().add(LOGIN_DENYLIST_KEY, signatureStr, expireTime);
+        // 本实例立即生效，其他实例在下次刷新快照后生效
+        recentRevoked.put(signatureStr, System.currentTimeMillis());
+        addToBloom(denylistBloom, signatureStr);
+    }
+
+    /**
+     * 清理过期的黑名单并重建本地布隆过滤器
+     */
+    private void refreshDenylist() {
+        long start = System.currentTimeMillis();
+        stringRedisTemplate.opsForZSet().removeRangeByScore(LOGIN_DENYLIST_KEY, 0, start);
+        Set<String> signatures = stringRedisTemplate.opsForZSet().range(LOGIN_DENYLIST_KEY, 0, -1);
+        AtomicLongArray bloom = new AtomicLongArray(BLOOM_BITS / 64);
+        if (signatures != null) {
+            signatures.forEach(signature -> addToBloom(bloom, signature));
+        }
+        // 合并本实例最近的登出：替换前合并一次，替换后再合并一次，覆盖替换前写到旧快照上的登出
+        recentRevoked.keySet().forEach(signature -> addToBloom(bloom, signature));
+        denylistBloom = bloom;
+        recentRevoked.keySet().forEach(signature -> addToBloom(bloom, signature));
+        // 开始刷新前的登出已经写入redis，包含在这次读取的黑名单中
+        recentRevoked.values().removeIf(revokeTime -> revokeTime < start);
+    }
+
+    private static void addToBloom(AtomicLongArray bloom, String signature) {
+        for (int index : bloomIndexes(signature)) {
+            // 登出和刷新可能同时写同一个位置，按位或需要原子操作
+            long bit = 1L << index;
+            bloom.accumulateAndGet(index >>> 6, bit, (a, b) -> a | b);
+        }
+    }
+
+    private boolean mightBeRevoked(String signature) {
+        AtomicLongArray bloom = denylistBloom;
+        for (int index : bloomIndexes(signature)) {
+            if ((bloom.get(index >>> 6) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] bloomIndexes(String value) {
+        // 双重哈希模拟k个哈希函数
+        int h1 = value.hashCode();
+        int h2 = HashUtil.fnvHash(value);
+        int[] indexes = new int[BLOOM_HASHES];
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            indexes[i] = (h1 + i * h2) & (BLOOM_BITS - 1);
+        }
+        return indexes;
+    }
+}
@@ -3,20 +3,96 @@ package com.hmdp.utils;
 public class RedisConstants {
     public static final String LOGIN_CODE_KEY = "login:code:";
     public static final Long LOGIN_CODE_TTL = 2L;
+    public static final String LOGIN_CODE_LIMIT_PHONE_KEY = "login:code:limit:phone:";
+    public static final String LOGIN_CODE_LIMIT_IP_KEY = "login:code:limit:ip:";
+    public static final Long LOGIN_CODE_LIMIT_WINDOW = 60L;
+    public static final Long LOGIN_CODE_LIMIT_PHONE_MAX = 5L;
+    public static final Long LOGIN_CODE_LIMIT_IP_MAX = 20L;
+    public static final Long LOGIN_CODE_INTERVAL = 60L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 30L;
+    public static final Long LOGIN_USER_LOCAL_TTL = 5L;
+    public static final String LOGIN_SESSIONS_KEY = "login:sessions:";
+    public static final Long LOGIN_SESSIONS_MAX = 5L;
+    public static final String LOGIN_EVICT_CHANNEL = "login:evict";
+    public static final String LOGIN_DENYLIST_KEY = "login:denylist";
+    public static final Long LOGIN_SIGNED_TOKEN_TTL = 7L;
 
     public static final Long CACHE_NULL_TTL = 2L;
 
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_PHONE_KEY = "cache:user:phone:";
+    public static final Long CACHE_USER_PHONE_TTL = 7L;
+    public static final String CACHE_USER_INFO_KEY = "cache:user:info:";
+    public static final String LOCK_USER_INFO_KEY = "lock:user:info:";
+    public static final Long CACHE_USER_INFO_TTL = 30L;
+
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final String CACHE_SHOP_TYPE_ID_KEY = "cache:shop:typeId:";
+
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shopTypeList:";
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shopTypeList:version";
+    public static final Long CACHE_SHOP_TYPE_TTL = 30L;
+
+    public static final String CACHE_SHOP_TILE_KEY = "cache:shop:tile:";
+    public static final Long CACHE_SHOP_TILE_TTL = 10L;
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String LOCK_BLOG_KEY = "lock:blog:";
+
+    public static final Long CACHE_BLOG_COMMENTS_TTL = 30L;
+    public static final String CACHE_BLOG_COMMENTS_KEY = "cache:blog:comments:";
+    public static final String CACHE_BLOG_COMMENTS_VERSION_KEY = "cache:blog:comments:version:";
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    public static final String LOCK_BLOG_HOT_NAME = "blog:hot";
+    public static final Long LOCK_BLOG_HOT_TTL = 30L;
+    public static final String BLOG_COMMENTS_DELTA_KEY = "blog:comments:delta";
+    public static final String LOCK_BLOG_COMMENTS_FLUSH_NAME = "blog:comments:flush";
+    public static final Long LOCK_BLOG_COMMENTS_FLUSH_TTL = 30L;
+    public static final String TRENDING_BLOG_KEY = "trending:blog:";
+    public static final String TRENDING_SHOP_KEY = "trending:shop:";
+    public static final String FOLLOWS_KEY = "follows:";
+    public static final String FOLLOWS_READY_KEY = "follows:ready:";
+    public static final String FOLLOWS_VERSION_KEY = "follows:version:";
+    public static final String LOCK_FOLLOWS_REBUILD_NAME = "follows:rebuild:";
+    public static final Long LOCK_FOLLOWS_REBUILD_TTL = 10L;
+    public static final String FOLLOW_FANS_KEY = "follow:fans:";
+    public static final String FOLLOW_FOLLOWEES_KEY = "follow:followees:";
+    public static final String FOLLOW_FANS_VERSION_KEY = "follow:fans:version:";
+    public static final String FOLLOW_FOLLOWEES_VERSION_KEY = "follow:followees:version:";
+    public static final String FOLLOW_COUNT_KEY = "follow:count:";
+    public static final Long FOLLOW_CACHE_TTL = 7L;
+    public static final String FOLLOW_COMMON_KEY = "follow:common:";
+    public static final Long FOLLOW_COMMON_TTL = 60L;
+    public static final String LOCK_FOLLOW_LIST_NAME = "follow:list:";
+    public static final Long LOCK_FOLLOW_LIST_TTL = 30L;
+    public static final String RECOMMEND_USER_KEY = "recommend:user:";
+    public static final String RECOMMEND_DIRTY_KEY = "recommend:dirty";
+    public static final Long RECOMMEND_USER_TTL = 7L;
+    public static final String LOCK_RECOMMEND_NAME = "recommend:job";
+    public static final Long LOCK_RECOMMEND_TTL = 300L;
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String LOCK_SHOP_GEO_NAME = "shop:geo";
+    public static final Long LOCK_SHOP_GEO_TTL = 600L;
+    public static final String SHOP_NEARBY_KEY = "shop:nearby:";
+    public static final Long SHOP_NEARBY_TTL = 300L;
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String LOCK_SIGN_COMPACT_NAME = "sign:compact";
+    public static final Long LOCK_SIGN_COMPACT_TTL = 3600L;
+
+    public static final String STATS_UV_KEY = "stats:uv:";
+    public static final String STATS_SIGN_KEY = "stats:sign:";
+    public static final String STATS_TMP_KEY = "stats:tmp:";
+    public static final Long STATS_TTL = 400L;
 }
@@ -1,54 +1,61 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.core.toolkit.StringUtils;
 import com.hmdp.dto.UserDTO;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.service.IStatsService;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
-
-import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
-import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
 
 /**
  * 由于LoginInterceptor只拦截部分请求，如果用户始终访问的是没有被拦截的路径（如首页），则不会刷新token，到期被退出登陆，降低用户体验；
  * 因此增加一个拦截所有请求的拦截器，只要该请求携带token且查出用户数据，将用户信息保存到ThreadLocal，并刷新token；
  * 如果token为空或user信息为空，则放行，由下一环节即LoginInterceptor判断；
  * 这层拦截器其实没有拦截操作；
+ * 用户信息先查本地缓存，本地缓存过期时才查询redis并刷新token，见LoginSessionCache；
+ * 签名token直接本地验签，见LoginTokenSigner；
+ * 查到用户后记录当天的访问用户，用于统计日活，见IStatsService；
  */
 public class RefreshTokenInterceptor implements HandlerInterceptor {
 
-    private StringRedisTemplate stringRedisTemplate;
+    private LoginSessionCache loginSessionCache;
+
+    private LoginTokenSigner loginTokenSigner;
+
+    private IStatsService statsService;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    public RefreshTokenInterceptor(LoginSessionCache loginSessionCache, LoginTokenSigner loginTokenSigner,
+                                   IStatsService statsService) {
+        this.loginSessionCache = loginSessionCache;
+        this.loginTokenSigner = loginTokenSigner;
+        this.statsService = statsService;
     }
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
         // 1. 获取请求头中的token
         String token = request.getHeader("authorization");
-        // 2. 从redis中获取用户
         if (StringUtils.isBlank(token)) {
             return true;
         }
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(LOGIN_USER_KEY + token);
-
+        // 2. 签名模式下签名token本地验签获取用户；否则从本地缓存或redis中获取用户，redis中查到时会一并刷新token有效期
+        UserDTO userDTO;
+        if (LoginTokenSigner.isSignedToken(token)) {
+            // 未开启签名模式时不认可任何签名token
+            userDTO = loginTokenSigner.isEnabled() ? loginTokenSigner.verify(token) : null;
+        } else {
+            userDTO = loginSessionCache.get(token);
+        }
         // 3. 判断用户是否存在
-        if (userMap.isEmpty()) {
+        if (userDTO == null) {
             return true;
         }
-        // 4. 将查出的hash数据转为UserDTO对象
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
-        // 5.存在，保存用户信息到ThreadLocal，方便controller层调用
+        // 4.存在，保存用户信息到ThreadLocal，方便controller层调用
         UserHolder.saveUser(userDTO);
-        // 6.刷新token有效期
-        stringRedisTemplate.expire(LOGIN_USER_KEY + token, LOGIN_USER_TTL, TimeUnit.MINUTES);
-        // 7.放行
+        // 5.记录今天的访问用户
+        statsService.recordVisit(userDTO.getId());
+        // 6.放行
         return true;
     }
 
@@ -0,0 +1,389 @@
+package com.hmdp.utils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 单个商铺类型的内存空间索引，把坐标范围划分为大小相近的正方形网格，
+ * 商铺按所在网格排序后存入基本类型数组，每个网格在数组中占一段连续区间，不为每个商铺创建对象
+ * 修改的商铺在基础数组中标记删除，新的坐标追加到一个小的增量区，增量区过大时重新构建
+ */
+public final class ShopGridIndex {
+
+    // 每度纬度的长度，米
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * GeoHash.EARTH_RADIUS;
+
+    // 平均每个网格的商铺数
+    private static final int SHOPS_PER_CELL = 8;
+
+    // 网格数上限，商铺分布很分散时放大网格
+    private static final int MAX_CELLS = 1 << 22;
+
+    private final double minX;
+    private final double minY;
+    private final double cellW;
+    private final double cellH;
+    private final int cols;
+    private final int rows;
+    // 网格的最小边长，米，用于判断外圈的网格是否还可能有更近的商铺
+    private final double minCellMeters;
+
+    // 第i个网格的商铺是 [cellStart[i], cellStart[i+1])
+    private final int[] cellStart;
+    private final long[] ids;
+    private final double[] xs;
+    private final double[] ys;
+    // 按id排序的副本，用于根据id找到商铺在基础数组中的位置
+    private final long[] sortedIds;
+    private final int[] sortedPos;
+    private final BitSet removed;
+    private int removedCount;
+
+    // 增量区
+    private long[] extraIds = new long[16];
+    private double[] extraXs = new double[16];
+    private double[] extraYs = new double[16];
+    private int extraSize;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * 距离由近到远的查询结果
+     */
+    public static final class Neighbors {
+        public final long[] ids;
+        public final double[] distances;
+
+        public Neighbors(long[] ids, double[] distances) {
+            this.ids = ids;
+            this.distances = distances;
+        }
+    }
+
+    /**
+     * @param ids 商铺id，不能重复
+     * @param xs 经度
+     * @param ys 纬度
+     * @param n 前n个元素有效
+     */
+    public ShopGridIndex(long[] ids, double[] xs, double[] ys, int n) {
+        double x0 = 180, x1 = -180, y0 = 90, y1 = -90;
+        for (int i = 0; i < n; i++) {
+            x0 = Math.min(x0, xs[i]);
+            x1 = Math.max(x1, xs[i]);
+            y0 = Math.min(y0, ys[i]);
+            y1 = Math.max(y1, ys[i]);
+        }
+        if (n == 0) {
+            x0 = x1 = y0 = y1 = 0;
+        }
+        // 按坐标范围的中间纬度换算经度方向的长度，使网格接近正方形
+        double cos = Math.max(Math.cos(Math.toRadians((y0 + y1) / 2)), 0.01);
+        double area = Math.max((x1 - x0) * cos * METERS_PER_DEGREE * (y1 - y0) * METERS_PER_DEGREE, 1);
+        double side = Math.max(Math.sqrt(area / Math.max(n / SHOPS_PER_CELL, 1)), 50);
+        int c, r;
+        while (true) {
+            c = (int) ((x1 - x0) / (side / (cos * METERS_PER_DEGREE))) + 1;
+            r = (int) ((y1 - y0) / (side / METERS_PER_DEGREE)) + 1;
+            if ((long) c * r <= MAX_CELLS) {
+                break;
+            }
+            side *= 2;
+        }
+        this.minX = x0;
+        this.minY = y0;
+        this.cellW = side / (cos * METERS_PER_DEGREE);
+        this.cellH = side / METERS_PER_DEGREE;
+        this.cols = c;
+        this.rows = r;
+        // 离赤道最远处经度方向最短
+        double minCos = Math.max(Math.cos(Math.toRadians(Math.max(Math.abs(y0), Math.abs(y1)))), 0.01);
+        this.minCellMeters = Math.min(cellW * minCos, cellH) * METERS_PER_DEGREE;
+
+        // 计数排序，按网格重排
+        int[] cellOf = new int[n];
+        this.cellStart = new int[c * r + 1];
+        for (int i = 0; i < n; i++) {
+            cellOf[i] = cellIndex(xs[i], ys[i]);
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (int i = 0; i < c * r; i++) {
+            cellStart[i + 1] += cellStart[i];
+        }
+        int[] next = Arrays.copyOf(cellStart, c * r);
+        this.ids = new long[n];
+        this.xs = new double[n];
+        this.ys = new double[n];
+        this.sortedIds = new long[n];
+        this.sortedPos = new int[n];
+        for (int i = 0; i < n; i++) {
+            int pos = next[cellOf[i]]++;
+            this.ids[pos] = ids[i];
+            this.xs[pos] = xs[i];
+            this.ys[pos] = ys[i];
+            this.sortedIds[i] = ids[i];
+            this.sortedPos[i] = pos;
+        }
+        sortById(sortedIds, sortedPos, 0, n - 1);
+        this.removed = new BitSet(n);
+    }
+
+    /**
+     * 新增商铺或修改商铺的坐标
+     */
+    public void put(long id, double x, double y) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+            if (extraSize == extraIds.length) {
+                extraIds = Arrays.copyOf(extraIds, extraSize * 2);
+                extraXs = Arrays.copyOf(extraXs, extraSize * 2);
+                extraYs = Arrays.copyOf(extraYs, extraSize * 2);
+            }
+            extraIds[extraSize] = id;
+            extraXs[extraSize] = x;
+            extraYs[extraSize] = y;
+            extraSize++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long id) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeLocked(long id) {
+        int i = Arrays.binarySearch(sortedIds, id);
+        if (i >= 0 && !removed.get(sortedPos[i])) {
+            removed.set(sortedPos[i]);
+            removedCount++;
+        }
+        for (int j = 0; j < extraSize; j++) {
+            if (extraIds[j] == id) {
+                extraSize--;
+                extraIds[j] = extraIds[extraSize];
+                extraXs[j] = extraXs[extraSize];
+                extraYs[j] = extraYs[extraSize];
+                break;
+            }
+        }
+    }
+
+    /**
+     * 查询radius米以内最近的k个商铺
+     * 从坐标所在的网格开始一圈圈向外扫描，已找到k个且外圈的最近距离超过第k个商铺的距离时结束
+     */
+    public Neighbors nearest(double x, double y, double radius, int k) {
+        if (k <= 0) {
+            return new Neighbors(new long[0], new double[0]);
+        }
+        double[] heapDist = new double[k];
+        long[] heapIds = new long[k];
+        int size = 0;
+        lock.readLock().lock();
+        try {
+            for (int j = 0; j < extraSize; j++) {
+                double d = GeoHash.distance(x, y, extraXs[j], extraYs[j]);
+                if (d <= radius) {
+                    size = offer(heapDist, heapIds, size, extraIds[j], d);
+                }
+            }
+            // 坐标在网格范围外时，所在网格的编号也在范围外，按圈扫描同样适用
+            long cx = (long) Math.floor((x - minX) / cellW);
+            long cy = (long) Math.floor((y - minY) / cellH);
+            long maxRing = Math.max(Math.max(cx, cols - 1 - cx), Math.max(cy, rows - 1 - cy));
+            for (long ring = 0; ring <= maxRing; ring++) {
+                // 第ring圈中的点距离坐标至少 (ring-1) 个网格边长
+                double ringDist = (ring - 1) * minCellMeters;
+                if (ringDist > radius || (size == k && ringDist > heapDist[0])) {
+                    break;
+                }
+                long r0 = Math.max(cy - ring, 0), r1 = Math.min(cy + ring, rows - 1);
+                for (long row = r0; row <= r1; row++) {
+                    boolean edge = row == cy - ring || row == cy + ring;
+                    long c0 = Math.max(cx - ring, 0), c1 = Math.min(cx + ring, cols - 1);
+                    // 中间的行只扫描左右两端的网格
+                    long step = edge || ring == 0 ? 1 : 2 * ring;
+                    for (long col = edge ? c0 : cx - ring; col <= c1; col += step) {
+                        if (col < 0) {
+                            continue;
+                        }
+                        int cell = (int) (row * cols + col);
+                        for (int p = cellStart[cell]; p < cellStart[cell + 1]; p++) {
+                            if (removedCount > 0 && removed.get(p)) {
+                                continue;
+                            }
+                            double d = GeoHash.distance(x, y, xs[p], ys[p]);
+                            if (d <= radius) {
+                                size = offer(heapDist, heapIds, size, ids[p], d);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        // 依次取出堆顶，从后往前填充得到升序结果
+        long[] resultIds = new long[size];
+        double[] resultDist = new double[size];
+        for (int i = size - 1; i >= 0; i--) {
+            resultIds[i] = heapIds[0];
+            resultDist[i] = heapDist[0];
+            heapIds[0] = heapIds[i];
+            heapDist[0] = heapDist[i];
+            siftDown(heapDist, heapIds, 0, i);
+        }
+        return new Neighbors(resultIds, resultDist);
+    }
+
+    /**
+     * 增量区的大小，过大时应调用rebuild
+     */
+    public int overlaySize() {
+        return extraSize;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ids.length - removedCount + extraSize;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 把基础数组中未删除的商铺和增量区合并，构建新的索引
+     */
+    public ShopGridIndex rebuild() {
+        lock.readLock().lock();
+        try {
+            int n = ids.length - removedCount + extraSize;
+            long[] newIds = new long[n];
+            double[] newXs = new double[n];
+            double[] newYs = new double[n];
+            int i = 0;
+            for (int p = 0; p < ids.length; p++) {
+                if (!removed.get(p)) {
+                    newIds[i] = ids[p];
+                    newXs[i] = xs[p];
+                    newYs[i] = ys[p];
+                    i++;
+                }
+            }
+            System.arraycopy(extraIds, 0, newIds, i, extraSize);
+            System.arraycopy(extraXs, 0, newXs, i, extraSize);
+            System.arraycopy(extraYs, 0, newYs, i, extraSize);
+            return new ShopGridIndex(newIds, newXs, newYs, n);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 估算占用的堆内存，字节
+     */
+    public long memoryBytes() {
+        long n = ids.length;
+        return n * (8 + 8 + 8 + 8 + 4) + (long) cellStart.length * 4 + n / 8
+                + (long) extraIds.length * (8 + 8 + 8);
+    }
+
+    private int cellIndex(double x, double y) {
+        int col = Math.min((int) ((x - minX) / cellW), cols - 1);
+        int row = Math.min((int) ((y - minY) / cellH), rows - 1);
+        return row * cols + col;
+    }
+
+    /**
+     * 大顶堆，保留距离最小的k个
+     */
+    private static int offer(double[] heapDist, long[] heapIds, int size, long id, double d) {
+        int k = heapDist.length;
+        if (size < k) {
+            // 上浮
+            int i = size;
+            while (i > 0 && heapDist[(i - 1) >>> 1] < d) {
+                int parent = (i - 1) >>> 1;
+                heapDist[i] = heapDist[parent];
+                heapIds[i] = heapIds[parent];
+                i = parent;
+            }
+            heapDist[i] = d;
+            heapIds[i] = id;
+            return size + 1;
+        }
+        if (k > 0 && d < heapDist[0]) {
+            heapDist[0] = d;
+            heapIds[0] = id;
+            siftDown(heapDist, heapIds, 0, size);
+        }
+        return size;
+    }
+
+    private static void siftDown(double[] heapDist, long[] heapIds, int i, int size) {
+        double d = heapDist[i];
+        long id = heapIds[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heapDist[child + 1] > heapDist[child]) {
+                child++;
+            }
+            if (heapDist[child] <= d) {
+                break;
+            }
+            heapDist[i] = heapDist[child];
+            heapIds[i] = heapIds[child];
+            i = child;
+        }
+        heapDist[i] = d;
+        heapIds[i] = id;
+    }
+
+    /**
+     * 按id对两个平行数组快速排序
+     */
+    private static void sortById(long[] keys, int[] values, int lo, int hi) {
+        while (lo < hi) {
+            long pivot = keys[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    long key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    int value = values[i];
+                    values[i] = values[j];
+                    values[j] = value;
+                    i++;
+                    j--;
+                }
+            }
+            // 递归较短的一边，避免栈过深
+            if (j - lo < hi - i) {
+                sortById(keys, values, lo, j);
+                lo = i;
+            } else {
+                sortById(keys, values, i, hi);
+                hi = j;
+            }
+        }
+    }
+}
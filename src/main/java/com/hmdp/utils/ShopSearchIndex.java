@@ -0,0 +1,525 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 商铺多条件搜索的内存倒排索引
+ * 每个商铺分配一个连续的文档编号，按类型、商圈、均价区间、评分区间建立位图，
+ * 查询时对位图求交集得到候选，再用基本类型数组中的属性精确过滤和排序，不需要查询数据库
+ * 名称按单字和相邻两个字（bigram）建立有序的文档编号列表，名称中的字种类多、每个字的商铺少，不适合用位图，
+ * 关键字的所有bigram都出现的商铺再校验是否包含关键字，结果与LIKE '%关键字%'一致
+ */
+public final class ShopSearchIndex {
+
+    public static final String SORT_BY_DISTANCE = "distance";
+    public static final String SORT_BY_SCORE = "score";
+    public static final String SORT_BY_SOLD = "sold";
+
+    // 均价区间的分界，[0,50) [50,100) [100,200) [200,500) [500,∞)
+    private static final long[] PRICE_BOUNDS = {50, 100, 200, 500};
+
+    // 评分为1~5分乘10，每一分一个区间
+    private static final int SCORE_BUCKETS = 6;
+
+    // 一次查询最多保留的结果数from+size
+    private static final int MAX_WINDOW = 1000;
+
+    // 文档的属性，下标为文档编号
+    private long[] shopIds = new long[1024];
+    private long[] typeIds = new long[1024];
+    private String[] rawNames = new String[1024];
+    // 转为小写并去掉空白后的名称
+    private String[] names = new String[1024];
+    private String[] areas = new String[1024];
+    private long[] prices = new long[1024];
+    private int[] scores = new int[1024];
+    private int[] solds = new int[1024];
+    private double[] xs = new double[1024];
+    private double[] ys = new double[1024];
+    private int docCount;
+
+    private final Map<Long, Integer> docOf = new HashMap<>();
+    private final BitSet live = new BitSet();
+    private final Map<Long, BitSet> typePostings = new HashMap<>();
+    private final Map<String, BitSet> areaPostings = new HashMap<>();
+    private final BitSet[] pricePostings = new BitSet[PRICE_BOUNDS.length + 1];
+    private final BitSet[] scorePostings = new BitSet[SCORE_BUCKETS];
+    // 单字的key为字符本身，bigram的key为 (第一个字 << 16) | 第二个字
+    private final Map<Integer, Postings> gramPostings = new HashMap<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * 按排序条件取出的一页结果
+     */
+    public static final class Hits {
+        // 符合条件的总数
+        public final int total;
+        public final long[] ids;
+        // 没有传坐标或商铺没有坐标时为NaN
+        public final double[] distances;
+
+        Hits(int total, long[] ids, double[] distances) {
+            this.total = total;
+            this.ids = ids;
+            this.distances = distances;
+        }
+    }
+
+    public ShopSearchIndex() {
+        for (int i = 0; i < pricePostings.length; i++) {
+            pricePostings[i] = new BitSet();
+        }
+        for (int i = 0; i < scorePostings.length; i++) {
+            scorePostings[i] = new BitSet();
+        }
+    }
+
+    /**
+     * 升序的文档编号列表
+     */
+    private static final class Postings {
+        int[] docs = new int[4];
+        int size;
+
+        void add(int doc) {
+            // 加载时文档编号递增，直接追加
+            int i = size == 0 || docs[size - 1] < doc ? size : Arrays.binarySearch(docs, 0, size, doc);
+            if (i >= 0 && i < size) {
+                return;
+            }
+            int pos = i >= 0 ? i : -i - 1;
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+            }
+            System.arraycopy(docs, pos, docs, pos + 1, size - pos);
+            docs[pos] = doc;
+            size++;
+        }
+
+        void remove(int doc) {
+            int i = Arrays.binarySearch(docs, 0, size, doc);
+            if (i >= 0) {
+                System.arraycopy(docs, i + 1, docs, i, size - i - 1);
+                size--;
+            }
+        }
+
+        boolean contains(int doc) {
+            return Arrays.binarySearch(docs, 0, size, doc) >= 0;
+        }
+    }
+
+    /**
+     * 新增或修改商铺
+     * @param shop 需要包含id、typeId、name、area、avgPrice、score、sold、x、y
+     */
+    public void put(Shop shop) {
+        lock.writeLock().lock();
+        try {
+            Integer doc = docOf.get(shop.getId());
+            if (doc == null) {
+                doc = docCount++;
+                ensureCapacity(docCount);
+                docOf.put(shop.getId(), doc);
+            } else {
+                unindex(doc);
+            }
+            shopIds[doc] = shop.getId();
+            typeIds[doc] = shop.getTypeId() == null ? -1 : shop.getTypeId();
+            rawNames[doc] = shop.getName();
+            names[doc] = shop.getName() == null ? null : normalize(shop.getName());
+            areas[doc] = shop.getArea();
+            prices[doc] = shop.getAvgPrice() == null ? -1 : shop.getAvgPrice();
+            scores[doc] = shop.getScore() == null ? -1 : shop.getScore();
+            solds[doc] = shop.getSold() == null ? 0 : shop.getSold();
+            xs[doc] = shop.getX() == null ? Double.NaN : shop.getX();
+            ys[doc] = shop.getY() == null ? Double.NaN : shop.getY();
+            index(doc);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long shopId) {
+        lock.writeLock().lock();
+        try {
+            Integer doc = docOf.get(shopId);
+            if (doc != null && live.get(doc)) {
+                unindex(doc);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return live.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 多条件搜索，条件为null表示不限
+     * @param typeId 类型
+     * @param area 商圈
+     * @param minPrice 最低均价
+     * @param maxPrice 最高均价
+     * @param minScore 最低评分，乘10
+     * @param x 经度
+     * @param y 纬度
+     * @param maxDistance 最远距离，米，需要同时传坐标
+     * @param sortBy 排序方式，distance按距离升序（需要传坐标），score、sold降序，相同时按id升序
+     * @param from 跳过的数量
+     * @param size 页大小
+     */
+    public Hits search(Long typeId, String area, Long minPrice, Long maxPrice, Integer minScore,
+                       Double x, Double y, Double maxDistance, String sortBy, int from, int size) {
+        boolean hasPoint = x != null && y != null;
+        int k = window(from, size);
+        double[] heapKeys = new double[k];
+        int[] heapDocs = new int[k];
+        int heapSize = 0;
+        int total = 0;
+        lock.readLock().lock();
+        try {
+            // 1.位图求交集
+            BitSet candidates = (BitSet) live.clone();
+            if (typeId != null) {
+                candidates.and(typePostings.getOrDefault(typeId, new BitSet()));
+            }
+            if (area != null) {
+                candidates.and(areaPostings.getOrDefault(area, new BitSet()));
+            }
+            if (minPrice != null || maxPrice != null) {
+                int first = minPrice == null ? 0 : priceBucket(minPrice);
+                int last = maxPrice == null ? PRICE_BOUNDS.length : priceBucket(maxPrice);
+                candidates.and(union(pricePostings, first, last));
+            }
+            if (minScore != null) {
+                candidates.and(union(scorePostings, scoreBucket(minScore), SCORE_BUCKETS - 1));
+            }
+
+            // 2.区间两端的位图中有不符合条件的商铺，按属性精确过滤，同时保留排序最靠前的from+size个
+            for (int doc = candidates.nextSetBit(0); doc >= 0; doc = candidates.nextSetBit(doc + 1)) {
+                if ((minPrice != null && prices[doc] < minPrice) || (maxPrice != null && prices[doc] > maxPrice)
+                        || (minScore != null && scores[doc] < minScore)) {
+                    continue;
+                }
+                double distance = hasPoint && !Double.isNaN(xs[doc])
+                        ? GeoHash.distance(x, y, xs[doc], ys[doc]) : Double.NaN;
+                if (maxDistance != null && !(distance <= maxDistance)) {
+                    continue;
+                }
+                total++;
+                if (k > 0) {
+                    heapSize = offer(heapKeys, heapDocs, heapSize, sortKey(doc, distance, sortBy), doc);
+                }
+            }
+
+            // 3.依次取出堆顶，从后往前填充得到升序结果，跳过前from个
+            int n = Math.max(heapSize - from, 0);
+            long[] ids = new long[n];
+            double[] distances = new double[n];
+            for (int i = heapSize - 1; i >= 0; i--) {
+                int doc = heapDocs[0];
+                if (i >= from) {
+                    ids[i - from] = shopIds[doc];
+                    distances[i - from] = hasPoint && !Double.isNaN(xs[doc])
+                            ? GeoHash.distance(x, y, xs[doc], ys[doc]) : Double.NaN;
+                }
+                heapKeys[0] = heapKeys[i];
+                heapDocs[0] = heapDocs[i];
+                siftDown(heapKeys, heapDocs, 0, i);
+            }
+            return new Hits(total, ids, distances);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 计算需要保留的结果数from+size，超出上限时拒绝，避免分配过大的数组
+     */
+    private static int window(int from, int size) {
+        if (from < 0 || size < 0 || (long) from + size > MAX_WINDOW) {
+            throw new IllegalArgumentException("分页范围超出限制: from=" + from + ", size=" + size);
+        }
+        return from + size;
+    }
+
+    /**
+     * 按名称搜索，按评分、销量降序
+     * @param keyword 名称中包含的关键字
+     * @param prefix true表示名称需要以关键字开头，用于输入提示
+     * @param from 跳过的数量
+     * @param size 页大小
+     * @return 没有距离
+     */
+    public Hits searchByName(String keyword, boolean prefix, int from, int size) {
+        String q = normalize(keyword);
+        int k = window(from, size);
+        double[] heapKeys = new double[k];
+        int[] heapDocs = new int[k];
+        int heapSize = 0;
+        int total = 0;
+        lock.readLock().lock();
+        try {
+            if (q.isEmpty()) {
+                return new Hits(0, new long[0], new double[0]);
+            }
+            // 1.取关键字所有gram的文档列表，有一个不存在就没有结果
+            int gramCount = q.length() == 1 ? 1 : q.length() - 1;
+            Postings[] lists = new Postings[gramCount];
+            for (int i = 0; i < gramCount; i++) {
+                lists[i] = gramPostings.get(q.length() == 1 ? gram(q.charAt(0)) : gram(q.charAt(i), q.charAt(i + 1)));
+                if (lists[i] == null) {
+                    return new Hits(0, new long[0], new double[0]);
+                }
+            }
+            // 2.遍历最短的列表，在其它列表中二分查找，再校验名称
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+            Postings shortest = lists[0];
+            for (int i = 0; i < shortest.size; i++) {
+                int doc = shortest.docs[i];
+                boolean matched = true;
+                for (int j = 1; j < lists.length && matched; j++) {
+                    matched = lists[j].contains(doc);
+                }
+                if (!matched || !(prefix ? names[doc].startsWith(q) : names[doc].contains(q))) {
+                    continue;
+                }
+                total++;
+                if (k > 0) {
+                    heapSize = offer(heapKeys, heapDocs, heapSize, sortKey(doc, Double.NaN, SORT_BY_SCORE), doc);
+                }
+            }
+            // 3.依次取出堆顶，从后往前填充得到升序结果，跳过前from个
+            int n = Math.max(heapSize - from, 0);
+            long[] ids = new long[n];
+            double[] distances = new double[n];
+            for (int i = heapSize - 1; i >= 0; i--) {
+                if (i >= from) {
+                    ids[i - from] = shopIds[heapDocs[0]];
+                    distances[i - from] = Double.NaN;
+                }
+                heapKeys[0] = heapKeys[i];
+                heapDocs[0] = heapDocs[i];
+                siftDown(heapKeys, heapDocs, 0, i);
+            }
+            return new Hits(total, ids, distances);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 商铺的原始名称，用于输入提示直接返回，不查询数据库
+     */
+    public String nameOf(long shopId) {
+        lock.readLock().lock();
+        try {
+            Integer doc = docOf.get(shopId);
+            return doc == null ? null : rawNames[doc];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private double sortKey(int doc, double distance, String sortBy) {
+        if (SORT_BY_DISTANCE.equals(sortBy)) {
+            // 没有坐标的排在最后
+            return Double.isNaN(distance) ? Double.MAX_VALUE : distance;
+        }
+        if (SORT_BY_SOLD.equals(sortBy)) {
+            return -((double) solds[doc] * 100 + scores[doc]);
+        }
+        return -((double) scores[doc] * 1e10 + solds[doc]);
+    }
+
+    private void index(int doc) {
+        live.set(doc);
+        if (typeIds[doc] >= 0) {
+            typePostings.computeIfAbsent(typeIds[doc], k -> new BitSet()).set(doc);
+        }
+        if (areas[doc] != null) {
+            areaPostings.computeIfAbsent(areas[doc], k -> new BitSet()).set(doc);
+        }
+        if (names[doc] != null) {
+            for (int gram : grams(names[doc])) {
+                gramPostings.computeIfAbsent(gram, k -> new Postings()).add(doc);
+            }
+        }
+        if (prices[doc] >= 0) {
+            pricePostings[priceBucket(prices[doc])].set(doc);
+        }
+        if (scores[doc] >= 0) {
+            scorePostings[scoreBucket(scores[doc])].set(doc);
+        }
+    }
+
+    private void unindex(int doc) {
+        live.clear(doc);
+        if (typeIds[doc] >= 0) {
+            typePostings.get(typeIds[doc]).clear(doc);
+        }
+        if (areas[doc] != null) {
+            areaPostings.get(areas[doc]).clear(doc);
+        }
+        if (names[doc] != null) {
+            for (int gram : grams(names[doc])) {
+                Postings postings = gramPostings.get(gram);
+                postings.remove(doc);
+                if (postings.size == 0) {
+                    gramPostings.remove(gram);
+                }
+            }
+        }
+        if (prices[doc] >= 0) {
+            pricePostings[priceBucket(prices[doc])].clear(doc);
+        }
+        if (scores[doc] >= 0) {
+            scorePostings[scoreBucket(scores[doc])].clear(doc);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= shopIds.length) {
+            return;
+        }
+        int newLength = Math.max(capacity, shopIds.length * 2);
+        shopIds = Arrays.copyOf(shopIds, newLength);
+        typeIds = Arrays.copyOf(typeIds, newLength);
+        rawNames = Arrays.copyOf(rawNames, newLength);
+        names = Arrays.copyOf(names, newLength);
+        areas = Arrays.copyOf(areas, newLength);
+        prices = Arrays.copyOf(prices, newLength);
+        scores = Arrays.copyOf(scores, newLength);
+        solds = Arrays.copyOf(solds, newLength);
+        xs = Arrays.copyOf(xs, newLength);
+        ys = Arrays.copyOf(ys, newLength);
+    }
+
+    /**
+     * 转为小写并去掉空白，索引和查询使用同样的规则
+     */
+    private static String normalize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 名称中所有不重复的单字和bigram
+     */
+    private static int[] grams(String name) {
+        int n = name.length();
+        int[] grams = new int[Math.max(2 * n - 1, 0)];
+        for (int i = 0; i < n; i++) {
+            grams[i] = gram(name.charAt(i));
+        }
+        for (int i = 0; i + 1 < n; i++) {
+            grams[n + i] = gram(name.charAt(i), name.charAt(i + 1));
+        }
+        Arrays.sort(grams);
+        int size = 0;
+        for (int i = 0; i < grams.length; i++) {
+            if (i == 0 || grams[i] != grams[i - 1]) {
+                grams[size++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, size);
+    }
+
+    private static int gram(char c) {
+        return c;
+    }
+
+    private static int gram(char first, char second) {
+        return (first << 16) | second;
+    }
+
+    private static int priceBucket(long price) {
+        int bucket = 0;
+        while (bucket < PRICE_BOUNDS.length && price >= PRICE_BOUNDS[bucket]) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private static int scoreBucket(int score) {
+        return Math.max(0, Math.min(score / 10, SCORE_BUCKETS - 1));
+    }
+
+    private static BitSet union(BitSet[] postings, int first, int last) {
+        BitSet result = new BitSet();
+        for (int i = first; i <= last; i++) {
+            result.or(postings[i]);
+        }
+        return result;
+    }
+
+    /**
+     * 大顶堆，保留排序键最小的k个，排序键相同时文档编号小的优先
+     */
+    private static int offer(double[] heapKeys, int[] heapDocs, int size, double key, int doc) {
+        if (size < heapKeys.length) {
+            int i = size;
+            while (i > 0 && greater(key, doc, heapKeys[(i - 1) >>> 1], heapDocs[(i - 1) >>> 1])) {
+                int parent = (i - 1) >>> 1;
+                heapKeys[i] = heapKeys[parent];
+                heapDocs[i] = heapDocs[parent];
+                i = parent;
+            }
+            heapKeys[i] = key;
+            heapDocs[i] = doc;
+            return size + 1;
+        }
+        if (greater(heapKeys[0], heapDocs[0], key, doc)) {
+            heapKeys[0] = key;
+            heapDocs[0] = doc;
+            siftDown(heapKeys, heapDocs, 0, size);
+        }
+        return size;
+    }
+
+    private static void siftDown(double[] heapKeys, int[] heapDocs, int i, int size) {
+        double key = heapKeys[i];
+        int doc = heapDocs[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && greater(heapKeys[child + 1], heapDocs[child + 1], heapKeys[child], heapDocs[child])) {
+                child++;
+            }
+            if (!greater(heapKeys[child], heapDocs[child], key, doc)) {
+                break;
+            }
+            heapKeys[i] = heapKeys[child];
+            heapDocs[i] = heapDocs[child];
+            i = child;
+        }
+        heapKeys[i] = key;
+        heapDocs[i] = doc;
+    }
+
+    private static boolean greater(double key1, int doc1, double key2, int doc2) {
+        return key1 > key2 || (key1 == key2 && doc1 > doc2);
+    }
+}
@@ -0,0 +1,14 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ShopTile {
+    // 距网格中心由近到远的候选商铺
+    private List<Shop> shops;
+    // 距网格中心这个距离（米）以内的商铺都在候选中
+    private Double radius;
+}
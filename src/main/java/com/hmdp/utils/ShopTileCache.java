@@ -0,0 +1,178 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TILE_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TILE_TTL;
+import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static com.hmdp.utils.SystemConstants.NEARBY_SHOP_RADIUS;
+
+/**
+ * 附近商铺的网格缓存 cache:shop:tile:{typeId}:{geohash}
+ * 同一网格内的用户共用一份候选商铺：以网格中心为圆心、半径加上网格半对角线搜索，
+ * 覆盖网格内任意位置5km内的商铺；每次查询只读一个key，再按用户的真实坐标在本地计算距离、排序、分页，
+ * 不需要每次GEOSEARCH和查询数据库。商铺变化时删除所有候选范围包含它的网格；
+ * 商铺密集的网格候选数达到上限时，完整的范围可能小于5km，凑不满一页时改为从用户坐标直接GEOSEARCH
+ */
+@Component
+public class ShopTileCache {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // geohash精度，6位的网格约为1.2km*0.6km
+    @Value("${hmdp.shop.nearby.tile-precision:6}")
+    private int precision;
+
+    // 每个网格最多缓存的候选商铺数
+    @Value("${hmdp.shop.nearby.tile-max-shops:200}")
+    private int maxShops;
+
+    /**
+     * 查询坐标附近的一页商铺，按距离由近到远
+     * @param typeId
+     * @param x
+     * @param y
+     * @param from 跳过的数量
+     * @param size 页大小
+     * @param dbFallback 根据id批量查询商铺，需要保持id的顺序
+     * @return 设置了距离的商铺
+     */
+    public List<Shop> query(Long typeId, double x, double y, int from, int size,
+                            Function<List<Long>, List<Shop>> dbFallback) {
+        double[] center = GeoHash.center(x, y, precision);
+        ShopTile tile = getTile(typeId, center, dbFallback);
+        // 候选只保证距中心tile.radius以内是完整的，换算到用户的位置
+        double limit = Math.min(NEARBY_SHOP_RADIUS,
+                tile.getRadius() - GeoHash.distance(x, y, center[0], center[1]));
+        List<Shop> nearby = new ArrayList<>();
+        for (Shop shop : tile.getShops()) {
+            double distance = GeoHash.distance(x, y, shop.getX(), shop.getY());
+            if (distance <= limit) {
+                shop.setDistance(distance);
+                nearby.add(shop);
+            }
+        }
+        if (nearby.size() < from + size && limit < NEARBY_SHOP_RADIUS) {
+            // 候选被截断，limit以外还可能有商铺，网格中的候选凑不满这一页
+            return search(typeId, x, y, from, size, dbFallback);
+        }
+        if (nearby.size() <= from) {
+            return Collections.emptyList();
+        }
+        nearby.sort(Comparator.comparingDouble(Shop::getDistance));
+        return nearby.subList(from, Math.min(from + size, nearby.size()));
+    }
+
+    /**
+     * 从用户坐标直接GEOSEARCH查询一页商铺
+     */
+    private List<Shop> search(Long typeId, double x, double y, int from, int size,
+                              Function<List<Long>, List<Shop>> dbFallback) {
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(
+                SHOP_GEO_KEY + typeId,
+                GeoReference.fromCoordinate(x, y),
+                new Distance(NEARBY_SHOP_RADIUS),
+                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().sortAscending().limit(from + size));
+        if (results == null || results.getContent().size() <= from) {
+            return Collections.emptyList();
+        }
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
+        List<Long> ids = new ArrayList<>(list.size() - from);
+        Map<Long, Double> distanceMap = new HashMap<>(list.size() - from);
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : list.subList(from, list.size())) {
+            Long id = Long.valueOf(result.getContent().getName());
+            ids.add(id);
+            distanceMap.put(id, result.getDistance().getValue());
+        }
+        List<Shop> shops = dbFallback.apply(ids);
+        for (Shop shop : shops) {
+            shop.setDistance(distanceMap.get(shop.getId()));
+        }
+        return shops;
+    }
+
+    /**
+     * 删除候选范围包含该坐标的所有网格
+     * @param typeId
+     * @param x
+     * @param y
+     */
+    public void evict(Long typeId, double x, double y) {
+        double width = GeoHash.cellWidth(precision);
+        double height = GeoHash.cellHeight(precision);
+        // 网格中心距该点不超过 半径+半对角线 的网格都可能包含它，先按经纬度框出范围
+        double reach = NEARBY_SHOP_RADIUS + halfDiagonal(x, y) + 1;
+        double dy = Math.toDegrees(reach / GeoHash.EARTH_RADIUS);
+        double dx = dy / Math.max(Math.cos(Math.toRadians(Math.min(Math.abs(y) + dy, 89))), 0.01);
+        double[] first = GeoHash.center(x - dx, y - dy, precision);
+        List<String> keys = new ArrayList<>();
+        for (double cy = first[1]; cy <= y + dy + height; cy += height) {
+            for (double cx = first[0]; cx <= x + dx + width; cx += width) {
+                if (GeoHash.distance(cx, cy, x, y) <= NEARBY_SHOP_RADIUS + halfDiagonal(cx, cy) + 1) {
+                    keys.add(tileKey(typeId, cx, cy));
+                }
+            }
+        }
+        stringRedisTemplate.delete(keys);
+    }
+
+    private ShopTile getTile(Long typeId, double[] center, Function<List<Long>, List<Shop>> dbFallback) {
+        String key = tileKey(typeId, center[0], center[1]);
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if (StrUtil.isNotBlank(json)) {
+            return JSONUtil.toBean(json, ShopTile.class);
+        }
+        // 未命中，从网格中心搜索，能覆盖网格内任意一点的5km范围
+        double searchRadius = NEARBY_SHOP_RADIUS + halfDiagonal(center[0], center[1]);
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(
+                SHOP_GEO_KEY + typeId,
+                GeoReference.fromCoordinate(center[0], center[1]),
+                new Distance(searchRadius),
+                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().sortAscending().limit(maxShops));
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list =
+                results == null ? Collections.emptyList() : results.getContent();
+        ShopTile tile = new ShopTile();
+        // 达到上限说明更远的商铺被截掉了，只有最后一个候选的距离以内是完整的
+        tile.setRadius(list.size() < maxShops ? searchRadius : list.get(list.size() - 1).getDistance().getValue());
+        if (list.isEmpty()) {
+            tile.setShops(Collections.emptyList());
+        } else {
+            List<Long> ids = new ArrayList<>(list.size());
+            for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : list) {
+                ids.add(Long.valueOf(result.getContent().getName()));
+            }
+            tile.setShops(dbFallback.apply(ids));
+        }
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(tile), CACHE_SHOP_TILE_TTL, TimeUnit.MINUTES);
+        return tile;
+    }
+
+    private String tileKey(Long typeId, double cx, double cy) {
+        // 用网格中心编码，避免边界上的浮点误差落到相邻网格
+        return CACHE_SHOP_TILE_KEY + typeId + ":" + GeoHash.encode(cx, cy, precision);
+    }
+
+    private double halfDiagonal(double cx, double cy) {
+        double halfWidth = GeoHash.cellWidth(precision) / 2;
+        double halfHeight = GeoHash.cellHeight(precision) / 2;
+        // 靠近赤道一侧的网格边更长
+        return Math.max(GeoHash.distance(cx, cy, cx + halfWidth, cy + halfHeight),
+                GeoHash.distance(cx, cy, cx + halfWidth, cy - halfHeight));
+    }
+}
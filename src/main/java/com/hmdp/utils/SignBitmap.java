@@ -0,0 +1,145 @@
+package com.hmdp.utils;
+
+/**
+ * 签到位图的本地表示，每一位对应一天，偏移量k为1表示第k+1天已签到
+ * redis位图中每个字节的最高位是偏移量最小的位，读取时按字节反转后存到long数组中，
+ * 之后就能用Long.numberOfTrailingZeros、Long.bitCount等一次处理64天，不用逐位移位判断
+ */
+public final class SignBitmap {
+
+    private final long[] words;
+
+    /**
+     * @param nbits 位图长度，即一年的天数
+     */
+    public SignBitmap(int nbits) {
+        this.words = new long[(nbits + 63) >>> 6];
+    }
+
+    /**
+     * 把从redis读取的位图字节转为本地位图
+     * @param bytes redis中的位图，为null表示没有任何签到
+     * @param nbits 位图长度
+     * @return
+     */
+    public static SignBitmap fromRedisBytes(byte[] bytes, int nbits) {
+        SignBitmap bitmap = new SignBitmap(nbits);
+        if (bytes == null) {
+            return bitmap;
+        }
+        int n = Math.min(bytes.length, bitmap.words.length << 3);
+        for (int i = 0; i < n; i++) {
+            // 反转字节内的位序，使bit k对应偏移量k
+            long reversed = (Integer.reverse(bytes[i] & 0xFF) >>> 24) & 0xFFL;
+            bitmap.words[i >>> 3] |= reversed << ((i & 7) << 3);
+        }
+        return bitmap;
+    }
+
+    public void set(int offset) {
+        words[offset >>> 6] |= 1L << offset;
+    }
+
+    public boolean get(int offset) {
+        return (words[offset >>> 6] & (1L << offset)) != 0;
+    }
+
+    /**
+     * 从offset往前数连续为1的位数，offset本身为0时返回0
+     * @param offset
+     * @return 如果直到偏移量0都为1，返回offset + 1
+     */
+    public int streakEndingAt(int offset) {
+        int w = offset >>> 6;
+        // 只看offset及之前的位，找其中最高的0位
+        long zeros = ~words[w] & (-1L >>> (63 - (offset & 63)));
+        while (zeros == 0) {
+            if (w == 0) {
+                return offset + 1;
+            }
+            zeros = ~words[--w];
+        }
+        int zeroPos = (w << 6) + 63 - Long.numberOfLeadingZeros(zeros);
+        return offset - zeroPos;
+    }
+
+    /**
+     * [from, to]区间内最长的连续为1的位数
+     * @param from
+     * @param to
+     * @return
+     */
+    public int longestStreak(int from, int to) {
+        int longest = 0;
+        int start = nextSetBit(from, to);
+        while (start >= 0) {
+            int end = nextClearBit(start, to + 1);
+            longest = Math.max(longest, end - start);
+            start = nextSetBit(end, to);
+        }
+        return longest;
+    }
+
+    /**
+     * [from, to]区间内为1的位数
+     * @param from
+     * @param to
+     * @return
+     */
+    public int count(int from, int to) {
+        int fromWord = from >>> 6;
+        int toWord = to >>> 6;
+        int count = 0;
+        for (int w = fromWord; w <= toWord; w++) {
+            long word = words[w];
+            if (w == fromWord) {
+                word &= -1L << from;
+            }
+            if (w == toWord) {
+                word &= -1L >>> (63 - (to & 63));
+            }
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * 返回[from, to]区间内第一个为1的位
+     * @param from
+     * @param to
+     * @return 没有时返回-1
+     */
+    public int nextSetBit(int from, int to) {
+        if (from > to) {
+            return -1;
+        }
+        int w = from >>> 6;
+        long word = words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w >= words.length) {
+                return -1;
+            }
+            word = words[w];
+        }
+        int next = (w << 6) + Long.numberOfTrailingZeros(word);
+        return next <= to ? next : -1;
+    }
+
+    /**
+     * 返回from及之后第一个为0的位，超过limit时返回limit
+     */
+    private int nextClearBit(int from, int limit) {
+        int w = from >>> 6;
+        if (w >= words.length) {
+            return limit;
+        }
+        long word = ~words[w] & (-1L << from);
+        while (word == 0) {
+            if (++w >= words.length) {
+                return limit;
+            }
+            word = ~words[w];
+        }
+        return Math.min((w << 6) + Long.numberOfTrailingZeros(word), limit);
+    }
+}
@@ -0,0 +1,14 @@
+package com.hmdp.utils;
+
+/**
+ * 短信发送接口，生产环境接入第三方短信平台（如阿里云）实现
+ */
+public interface SmsSender {
+
+    /**
+     * 发送登录验证码
+     * @param phone 手机号
+     * @param code 验证码
+     */
+    void sendCode(String phone, String code);
+}
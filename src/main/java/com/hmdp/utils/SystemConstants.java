@@ -4,6 +4,10 @@ public class SystemConstants {
     public static final String IMAGE_UPLOAD_DIR = "/opt/homebrew/Cellar/nginx/1.27.4/html/hmdp/imgs";
 //    public static final String IMAGE_UPLOAD_DIR = "D:\\lesson\\nginx-1.18.0\\html\\hmdp\\imgs\\";
     public static final String USER_NICK_NAME_PREFIX = "user_";
+    public static final int USER_NICK_NAME_MAX_LENGTH = 32;
+    public static final int USER_CARDS_MAX_SIZE = 100;
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    public static final int NEARBY_SHOP_RADIUS = 5000;
+    public static final int SHOP_SEARCH_MAX_PAGE = 100;
 }
@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.TRENDING_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.TRENDING_SHOP_KEY;
+
+/**
+ * 基于时间衰减的热度计算
+ * 每个事件的热度为 w * e^(-(now - t)/tau)，由于所有成员的 e^(-now/tau) 相同，排序时可以约掉，
+ * 因此榜单中只需保存 ln(Σ w * e^(t/tau))，每个事件一次 O(log n) 的累加，不需要定时重算全部成员
+ */
+@Component
+public class TrendingScorer {
+
+    // 全部类型的榜单使用的typeId
+    public static final Long ALL_TYPE_ID = 0L;
+
+    // 各类事件的热度权重
+    public static final double POST_WEIGHT = 3;
+    public static final double LIKE_WEIGHT = 1;
+    public static final double COMMENT_WEIGHT = 2;
+
+    // 每个榜单保留的最大成员数，只有排在前面的成员会被查询
+    private static final int MAX_SIZE = 10000;
+
+    // 衰减时间常数，热度每经过一个tau衰减为原来的1/e（半衰期约16.6小时）
+    private static final double DECAY_TAU_SECONDS = 24 * 3600;
+    // 起始时间戳（2022-01-01 00:00:00 UTC），与RedisIdWorker一致
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 初始化lua脚本
+    private static final DefaultRedisScript<Long> TRENDING_SCRIPT;
+    static {
+        TRENDING_SCRIPT = new DefaultRedisScript<>();
+        TRENDING_SCRIPT.setLocation(new ClassPathResource("trending.lua"));
+        TRENDING_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 记录blog上的一次事件（发布、点赞、评论），同时计入blog和所属商铺的热度
+     * @param blogId blog id
+     * @param shopId blog关联的商铺id
+     * @param typeId 商铺类型id，为空时只计入全部类型的榜单
+     * @param weight 事件权重
+     * @param eventTime 事件发生的时间戳（毫秒）
+     */
+    public void addBlogEvent(Long blogId, Long shopId, Long typeId, double weight, long eventTime) {
+        execute(blogId, shopId, typeId, weight, eventTime, 1);
+    }
+
+    /**
+     * 撤销blog上的一次事件（如取消点赞），eventTime需传入原事件发生的时间，才能扣除当时计入的热度
+     */
+    public void removeBlogEvent(Long blogId, Long shopId, Long typeId, double weight, long eventTime) {
+        execute(blogId, shopId, typeId, weight, eventTime, -1);
+    }
+
+    /**
+     * 分页查询blog热度榜
+     */
+    public Set<String> rangeBlogs(Long typeId, long from, long end) {
+        return stringRedisTemplate.opsForZSet().reverseRange(TRENDING_BLOG_KEY + typeId, from, end);
+    }
+
+    /**
+     * 分页查询商铺热度榜
+     */
+    public Set<String> rangeShops(Long typeId, long from, long end) {
+        return stringRedisTemplate.opsForZSet().reverseRange(TRENDING_SHOP_KEY + typeId, from, end);
+    }
+
+    /**
+     * 计算事件在对数空间中的热度
+     */
+    public static double score(double weight, long eventTime) {
+        return Math.log(weight) + (eventTime / 1000D - BEGIN_TIMESTAMP) / DECAY_TAU_SECONDS;
+    }
+
+    private void execute(Long blogId, Long shopId, Long typeId, double weight, long eventTime, int sign) {
+        String inc = String.valueOf(score(weight, eventTime));
+        String blogMember = blogId.toString();
+        String shopMember = shopId.toString();
+        if (typeId == null || ALL_TYPE_ID.equals(typeId)) {
+            stringRedisTemplate.execute(TRENDING_SCRIPT,
+                    Arrays.asList(TRENDING_BLOG_KEY + ALL_TYPE_ID, TRENDING_SHOP_KEY + ALL_TYPE_ID),
+                    inc, String.valueOf(sign), blogMember, shopMember, String.valueOf(MAX_SIZE));
+            return;
+        }
+        stringRedisTemplate.execute(TRENDING_SCRIPT,
+                Arrays.asList(TRENDING_BLOG_KEY + ALL_TYPE_ID, TRENDING_BLOG_KEY + typeId,
+                        TRENDING_SHOP_KEY + ALL_TYPE_ID, TRENDING_SHOP_KEY + typeId),
+                inc, String.valueOf(sign), blogMember, blogMember, shopMember, shopMember, String.valueOf(MAX_SIZE));
+    }
+}
@@ -0,0 +1,88 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * UserDTO与登录hash之间的转换
+ * 每个登录请求都要做一次转换，BeanUtil.beanToMap/fillBeanWithMap基于反射，
+ * 这里直接按字段读写，并且可以直接解析redis返回的原始字节，不需要先转成String的Map
+ */
+public class UserDTOCodec {
+
+    private static final String ID = "id";
+    private static final String NICK_NAME = "nickName";
+    private static final String ICON = "icon";
+
+    private static final byte[] ID_BYTES = ID.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NICK_NAME_BYTES = NICK_NAME.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ICON_BYTES = ICON.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 转为登录hash，空字段不写入
+     * @param userDTO
+     * @return
+     */
+    public static Map<String, String> toHash(UserDTO userDTO) {
+        Map<String, String> hash = new HashMap<>(4);
+        if (userDTO.getId() != null) {
+            hash.put(ID, userDTO.getId().toString());
+        }
+        if (userDTO.getNickName() != null) {
+            hash.put(NICK_NAME, userDTO.getNickName());
+        }
+        if (userDTO.getIcon() != null) {
+            hash.put(ICON, userDTO.getIcon());
+        }
+        return hash;
+    }
+
+    /**
+     * 从redis HGETALL返回的原始字节解析
+     * @param hash
+     * @return hash为空时返回null
+     */
+    public static UserDTO fromRawHash(Map<byte[], byte[]> hash) {
+        if (hash == null || hash.isEmpty()) {
+            return null;
+        }
+        UserDTO userDTO = new UserDTO();
+        for (Map.Entry<byte[], byte[]> entry : hash.entrySet()) {
+            byte[] field = entry.getKey();
+            byte[] value = entry.getValue();
+            if (Arrays.equals(field, ID_BYTES)) {
+                userDTO.setId(parseLong(value));
+            } else if (Arrays.equals(field, NICK_NAME_BYTES)) {
+                userDTO.setNickName(new String(value, StandardCharsets.UTF_8));
+            } else if (Arrays.equals(field, ICON_BYTES)) {
+                userDTO.setIcon(new String(value, StandardCharsets.UTF_8));
+            }
+        }
+        return userDTO;
+    }
+
+    // 直接从ASCII数字字节解析long，不创建中间String
+    private static long parseLong(byte[] bytes) {
+        int i = 0;
+        boolean negative = bytes.length > 0 && bytes[0] == '-';
+        if (negative) {
+            i = 1;
+        }
+        if (i == bytes.length) {
+            throw new NumberFormatException("用户id为空");
+        }
+        long value = 0;
+        for (; i < bytes.length; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("用户id格式错误：" + new String(bytes, StandardCharsets.UTF_8));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+}
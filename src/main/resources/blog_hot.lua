@@ -0,0 +1,7 @@
+--- 参数：KEYS[1] 排行榜key，ARGV[1] 分数增量，ARGV[2] blogId
+--- 排行榜存在时才累加分数，避免排行榜丢失后被单条增量写成一个不完整的榜单（不完整时会被跳过重建）
+if (redis.call('exists', KEYS[1]) == 1) then
+    redis.call('zincrby', KEYS[1], ARGV[1], ARGV[2])
+    return 1
+end
+return 0
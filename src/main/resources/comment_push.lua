@@ -0,0 +1,10 @@
+--- 新的一级评论写入第一页缓存
+--- 参数：KEYS[1] 第一页缓存list，KEYS[2] 缓存版本号，ARGV[1] 评论json，ARGV[2] 第一页大小，ARGV[3] 过期时间（秒）
+--- 先增加版本号，让此前读数据库、尚未写回的重建作废
+redis.call('incr', KEYS[2])
+redis.call('expire', KEYS[2], ARGV[3])
+--- list不存在说明没人看过，不需要写
+if (redis.call('lpushx', KEYS[1], ARGV[1]) > 0) then
+    redis.call('ltrim', KEYS[1], 0, tonumber(ARGV[2]) - 1)
+end
+return 1
@@ -0,0 +1,14 @@
+--- 用数据库查询结果重建第一页缓存
+--- 参数：KEYS[1] 第一页缓存list，KEYS[2] 缓存版本号，ARGV[1] 查询数据库前读到的版本号，ARGV[2] 过期时间（秒）
+---       ARGV[3..] 评论json，没有评论时为一个空字符串占位，表示第一页为空
+--- 版本号变化说明查询数据库之后有新评论，结果可能缺少这条评论，放弃写入
+local version = redis.call('get', KEYS[2]) or '0'
+if (version ~= ARGV[1]) then
+    return 0
+end
+redis.call('del', KEYS[1])
+for i = 3, #ARGV do
+    redis.call('rpush', KEYS[1], ARGV[i])
+end
+redis.call('expire', KEYS[1], ARGV[2])
+return 1
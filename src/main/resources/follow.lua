@@ -0,0 +1,45 @@
+--- 参数：KEYS[1] 关注集合follows:{userId}，KEYS[2] 关注列表zset，KEYS[3] 被关注用户的粉丝列表zset
+---       KEYS[4] 用户的关注数hash，KEYS[5] 被关注用户的粉丝数hash，KEYS[6] 关注集合有变化、需要重新计算推荐的用户集合
+---       KEYS[7] 关注集合的取关版本号，KEYS[8] 关注列表的版本号，KEYS[9] 被关注用户粉丝列表的版本号
+---       ARGV[1] 用户id，ARGV[2] 被关注用户id，ARGV[3] 1：关注，0：取关，ARGV[4] 关注时间戳（毫秒），ARGV[5] 版本号有效期（秒）
+--- 列表和计数不存在时说明还没有从数据库加载，跳过，由查询时加载
+local userId = ARGV[1]
+local followUserId = ARGV[2]
+
+if (ARGV[3] == '1') then
+    redis.call('sadd', KEYS[1], followUserId)
+    if (redis.call('exists', KEYS[2]) == 1) then
+        redis.call('zadd', KEYS[2], ARGV[4], followUserId)
+    end
+    if (redis.call('exists', KEYS[3]) == 1) then
+        redis.call('zadd', KEYS[3], ARGV[4], userId)
+    end
+    if (redis.call('exists', KEYS[4]) == 1) then
+        redis.call('hincrby', KEYS[4], 'followee', 1)
+    end
+    if (redis.call('exists', KEYS[5]) == 1) then
+        redis.call('hincrby', KEYS[5], 'fans', 1)
+    end
+else
+    redis.call('srem', KEYS[1], followUserId)
+    --- 取关时递增版本号，正在进行的重建不再写入可能包含该用户的数据
+    redis.call('incr', KEYS[7])
+    redis.call('expire', KEYS[7], ARGV[5])
+    redis.call('zrem', KEYS[2], followUserId)
+    redis.call('zrem', KEYS[3], userId)
+    --- 计数不会小于0
+    if (redis.call('exists', KEYS[4]) == 1 and redis.call('hincrby', KEYS[4], 'followee', -1) < 0) then
+        redis.call('hset', KEYS[4], 'followee', 0)
+    end
+    if (redis.call('exists', KEYS[5]) == 1 and redis.call('hincrby', KEYS[5], 'fans', -1) < 0) then
+        redis.call('hset', KEYS[5], 'fans', 0)
+    end
+end
+--- 关注和取关都使两个列表正在进行的加载作废，加载时列表可能还不存在，上面的zadd会跳过
+redis.call('incr', KEYS[8])
+redis.call('expire', KEYS[8], ARGV[5])
+redis.call('incr', KEYS[9])
+redis.call('expire', KEYS[9], ARGV[5])
+--- 关注集合变了，等待后台任务重新计算"可能认识的人"
+redis.call('sadd', KEYS[6], userId)
+return 0
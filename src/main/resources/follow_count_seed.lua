@@ -0,0 +1,11 @@
+--- 用数据库统计的结果初始化关注数、粉丝数
+--- 参数：KEYS[1] 用户的计数hash，KEYS[2] 用户粉丝列表的版本号，KEYS[3] 用户关注列表的版本号
+---       ARGV[1] 统计前读到的粉丝列表版本号，ARGV[2] 统计前读到的关注列表版本号
+---       ARGV[3] 粉丝数，ARGV[4] 关注数，ARGV[5] 有效期（秒）
+--- 版本号变化说明统计期间有关注/取关，它们的增减因为计数不存在被跳过，统计结果可能也不包含它们，放弃写入
+if ((redis.call('get', KEYS[2]) or '0') ~= ARGV[1] or (redis.call('get', KEYS[3]) or '0') ~= ARGV[2]) then
+    return 0
+end
+redis.call('hset', KEYS[1], 'fans', ARGV[3], 'followee', ARGV[4])
+redis.call('expire', KEYS[1], ARGV[5])
+return 1
@@ -0,0 +1,18 @@
+--- 把从数据库读取的一批关注写入关注/粉丝列表
+--- 参数：KEYS[1] 关注/粉丝列表zset，KEYS[2] 列表的版本号
+---       ARGV[1] 读取数据库前读到的版本号，ARGV[2] 1：最后一批，写入完整标记，ARGV[3] 有效期（秒）
+---       ARGV[4..] 关注时间戳（毫秒）、用户id交替
+--- 版本号变化说明加载期间有关注或取关，这批数据可能已经过时，放弃写入
+local version = redis.call('get', KEYS[2]) or '0'
+if (version ~= ARGV[1]) then
+    return 0
+end
+if (#ARGV > 3) then
+    redis.call('zadd', KEYS[1], unpack(ARGV, 4))
+end
+--- 完整标记为分数是0的成员"0"
+if (ARGV[2] == '1') then
+    redis.call('zadd', KEYS[1], 0, '0')
+end
+redis.call('expire', KEYS[1], ARGV[3])
+return 1
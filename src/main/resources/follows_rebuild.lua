@@ -0,0 +1,18 @@
+--- 把从数据库读取的一批关注写入关注集合
+--- 参数：KEYS[1] 关注集合follows:{userId}，KEYS[2] 集合完整的标记，KEYS[3] 取关版本号
+---       ARGV[1] 读取数据库前读到的版本号，ARGV[2] 1：最后一批，写入完整标记，ARGV[3] 有效期（秒），ARGV[4..] 被关注用户id
+--- 版本号变化说明重建期间有取关，这批数据中可能包含已取关的用户，放弃写入
+local version = redis.call('get', KEYS[3]) or '0'
+if (version ~= ARGV[1]) then
+    return 0
+end
+local ttl = tonumber(ARGV[3])
+if (#ARGV > 3) then
+    redis.call('sadd', KEYS[1], unpack(ARGV, 4))
+    redis.call('expire', KEYS[1], ttl)
+end
+--- 完整标记比集合早一分钟过期，标记存在时集合一定还在
+if (ARGV[2] == '1') then
+    redis.call('set', KEYS[2], '1', 'EX', ttl - 60)
+end
+return 1
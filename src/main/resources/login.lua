@@ -0,0 +1,26 @@
+--- 参数：KEYS[1] 登录用户hash的key，KEYS[2] 用户会话索引zset的key
+---       ARGV[1] token，ARGV[2] 当前时间戳（毫秒），ARGV[3] 有效期（秒），ARGV[4] 每个用户最多保留的会话数
+---       ARGV[5...] 用户hash的field、value
+local token = ARGV[1]
+local now = tonumber(ARGV[2])
+local ttl = tonumber(ARGV[3])
+local max = tonumber(ARGV[4])
+
+--- 保存用户信息
+redis.call('hset', KEYS[1], unpack(ARGV, 5))
+redis.call('expire', KEYS[1], ttl)
+
+--- 清理索引中已过期的会话，记录新会话
+redis.call('zremrangebyscore', KEYS[2], 0, now - ttl * 1000)
+redis.call('zadd', KEYS[2], now, token)
+
+--- 超出会话上限时，从索引中移除最久未活跃的会话
+local evicted = {}
+local excess = redis.call('zcard', KEYS[2]) - max
+if (excess > 0) then
+    evicted = redis.call('zrange', KEYS[2], 0, excess - 1)
+    redis.call('zremrangebyrank', KEYS[2], 0, excess - 1)
+end
+redis.call('expire', KEYS[2], ttl)
+--- 返回被踢掉的token，这些会话的key不在KEYS中，由调用方删除并通知各实例删除本地缓存
+return evicted
@@ -0,0 +1,42 @@
+--- 参数：KEYS[1] 手机号的发送记录zset，KEYS[2] IP的发送记录zset，KEYS[3] 验证码的key
+---       ARGV[1] 当前时间戳（毫秒），ARGV[2] 滑动窗口长度（毫秒），ARGV[3] 窗口内每个手机号最多发送次数
+---       ARGV[4] 窗口内每个IP最多发送次数，ARGV[5] 两次发送的最小间隔（秒），ARGV[6] 新生成的验证码
+---       ARGV[7] 验证码有效期（秒），ARGV[8] 本次发送记录的唯一标识
+--- 返回：{0, 验证码} 允许发送，{1} 发送过于频繁，{2} 手机号超出限制，{3} IP超出限制
+local now = tonumber(ARGV[1])
+local window = tonumber(ARGV[2])
+local phoneMax = tonumber(ARGV[3])
+local ipMax = tonumber(ARGV[4])
+local interval = tonumber(ARGV[5])
+local codeTtl = tonumber(ARGV[7])
+
+--- 1.距上次发送不足最小间隔，直接拒绝，合并用户的重复点击
+local ttl = redis.call('ttl', KEYS[3])
+if (ttl > codeTtl - interval) then
+    return {1}
+end
+
+--- 2.清理窗口外的发送记录，判断是否超出限制
+redis.call('zremrangebyscore', KEYS[1], 0, now - window)
+if (redis.call('zcard', KEYS[1]) >= phoneMax) then
+    return {2}
+end
+redis.call('zremrangebyscore', KEYS[2], 0, now - window)
+if (redis.call('zcard', KEYS[2]) >= ipMax) then
+    return {3}
+end
+
+--- 3.记录本次发送
+local windowSeconds = math.ceil(window / 1000)
+redis.call('zadd', KEYS[1], now, ARGV[8])
+redis.call('expire', KEYS[1], windowSeconds)
+redis.call('zadd', KEYS[2], now, ARGV[8])
+redis.call('expire', KEYS[2], windowSeconds)
+
+--- 4.之前的验证码还有效时沿用，避免用户收到多条不同的验证码；否则保存新验证码
+local code = redis.call('get', KEYS[3])
+if (not code) then
+    code = ARGV[6]
+end
+redis.call('set', KEYS[3], code, 'EX', codeTtl)
+return {0, code}
@@ -0,0 +1,33 @@
+--- 参数：KEYS[i] 热度榜key，ARGV[1] 本次事件的对数热度 ln(w) + t/tau，ARGV[2] 1表示新增事件、-1表示撤销事件
+---       ARGV[2 + i] KEYS[i]中对应的成员，最后一个ARGV 每个榜单保留的最大成员数
+--- 榜单中保存的是 ln(Σ w * e^(t/tau))，在对数空间中累加，已有成员无需随时间重算
+local inc = tonumber(ARGV[1])
+local sign = tonumber(ARGV[2])
+local maxSize = tonumber(ARGV[#ARGV])
+
+for i, key in ipairs(KEYS) do
+    local member = ARGV[2 + i]
+    local old = redis.call('zscore', key, member)
+    if (old) then
+        old = tonumber(old)
+        if (sign > 0) then
+            --- ln(e^a + e^b) = max + ln(1 + e^(min - max))，避免直接求指数溢出
+            local hi = math.max(old, inc)
+            local lo = math.min(old, inc)
+            redis.call('zadd', key, hi + math.log(1 + math.exp(lo - hi)), member)
+        elseif (inc < old) then
+            --- ln(e^a - e^b) = a + ln(1 - e^(b - a))
+            redis.call('zadd', key, old + math.log(1 - math.exp(inc - old)), member)
+        else
+            --- 热度被全部撤销，移出榜单
+            redis.call('zrem', key, member)
+        end
+    elseif (sign > 0) then
+        redis.call('zadd', key, inc, member)
+        --- 新成员加入后超出上限，删除热度最低的成员，避免榜单无限增长
+        if (redis.call('zcard', key) > maxSize) then
+            redis.call('zremrangebyrank', key, 0, -maxSize - 1)
+        end
+    end
+end
+return 1
@@ -5,25 +5,37 @@ import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
 import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.BlogComments;
 import com.hmdp.entity.Shop;
 import com.hmdp.entity.User;
+import com.hmdp.service.impl.BlogCommentsServiceImpl;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.service.impl.UserServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.GeoHash;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.ShopGridIndex;
+import com.hmdp.utils.ShopSearchIndex;
+import com.hmdp.utils.SignBitmap;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserDTOCodec;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.domain.geo.GeoReference;
 
 import javax.annotation.Resource;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -43,6 +55,9 @@ public class HmDianPingApplicationTest {
     @Resource
     private UserServiceImpl userService;
 
+    @Resource
+    private BlogCommentsServiceImpl blogCommentsService;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
@@ -186,4 +201,279 @@ public class HmDianPingApplicationTest {
         Long count = stringRedisTemplate.opsForHyperLogLog().size("hl1");
         System.out.println("count=" + count);
     }
+
+    @Test
+    public void testCommentsScroll() {
+        // 使用不存在的笔记id，测试结束后删除写入的评论和缓存，不影响真实数据
+        long blogId = 900000000L + RandomUtil.randomInt(1000000);
+        try {
+            // 1. 给同一篇笔记写入100万条一级评论
+            int total = 1000000;
+            List<BlogComments> batch = new ArrayList<>(1000);
+            for (int i = 0; i < total; i++) {
+                BlogComments comment = new BlogComments();
+                comment.setUserId(1L + i % 1000);
+                comment.setBlogId(blogId);
+                comment.setParentId(0L);
+                comment.setAnswerId(0L);
+                comment.setContent("comment_" + i);
+                comment.setLiked(0);
+                comment.setStatus(false);
+                batch.add(comment);
+                if (batch.size() == 1000) {
+                    blogCommentsService.saveBatch(batch);
+                    batch.clear();
+                }
+            }
+            long maxId = blogCommentsService.query().eq("blog_id", blogId).orderByDesc("id").last("LIMIT 1").one().getId();
+
+            // 2. 分别从第一页、1千条、1万条、10万条、90万条之后开始翻页，统计平均耗时
+            long[] depths = {0, 1000, 10000, 100000, 900000};
+            for (long depth : depths) {
+                long lastId = maxId - depth;
+                int times = 100;
+                long begin = System.nanoTime();
+                for (int i = 0; i < times; i++) {
+                    blogCommentsService.queryCommentsOfBlog(blogId, depth == 0 ? null : lastId);
+                }
+                long end = System.nanoTime();
+                System.out.println("depth=" + depth + ", avg=" + (end - begin) / times / 1000 + "us");
+            }
+        } finally {
+            blogCommentsService.remove(blogCommentsService.query().eq("blog_id", blogId).getWrapper());
+            stringRedisTemplate.delete(Arrays.asList(CACHE_BLOG_COMMENTS_KEY + blogId, CACHE_BLOG_COMMENTS_VERSION_KEY + blogId));
+        }
+    }
+
+    @Test
+    public void testUserDTOCodec() {
+        // 模拟HGETALL返回的登录hash，分别对比Hutool反射转换与UserDTOCodec直接转换的耗时
+        Map<Object, Object> stringHash = new HashMap<>();
+        stringHash.put("id", "1010");
+        stringHash.put("nickName", "user_abcdefghij");
+        stringHash.put("icon", "/imgs/icons/user5-icon.png");
+        Map<byte[], byte[]> rawHash = new HashMap<>();
+        for (Map.Entry<Object, Object> entry : stringHash.entrySet()) {
+            rawHash.put(entry.getKey().toString().getBytes(StandardCharsets.UTF_8),
+                    entry.getValue().toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        int times = 1000000;
+        // 预热
+        for (int i = 0; i < times; i++) {
+            BeanUtil.fillBeanWithMap(stringHash, new UserDTO(), false);
+            UserDTOCodec.fromRawHash(rawHash);
+        }
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < times; i++) {
+            BeanUtil.fillBeanWithMap(stringHash, new UserDTO(), false);
+        }
+        long hutool = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < times; i++) {
+            UserDTOCodec.fromRawHash(rawHash);
+        }
+        long codec = System.nanoTime() - begin;
+
+        System.out.println("hutool avg=" + hutool / times + "ns, codec avg=" + codec / times + "ns");
+    }
+
+    @Test
+    public void testSignBitmap() {
+        // 模拟一年的签到位图，redis中每个字节的最高位是偏移量最小的位，大部分天都签到
+        Random random = new Random(1);
+        int days = 365;
+        byte[] bytes = new byte[(days + 7) / 8];
+        for (int i = 0; i < days; i++) {
+            if (random.nextInt(20) != 0) {
+                bytes[i >>> 3] |= 0x80 >>> (i & 7);
+            }
+        }
+
+        // 校验与逐位判断的结果一致
+        SignBitmap bitmap = SignBitmap.fromRedisBytes(bytes, days);
+        for (int offset = 0; offset < days; offset++) {
+            assert bitmap.streakEndingAt(offset) == streakByShift(bytes, offset);
+        }
+
+        int times = 1000000;
+        // 预热
+        for (int i = 0; i < times; i++) {
+            SignBitmap.fromRedisBytes(bytes, days).streakEndingAt(i % days);
+            streakByShift(bytes, i % days);
+        }
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < times; i++) {
+            streakByShift(bytes, i % days);
+        }
+        long shift = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < times; i++) {
+            SignBitmap b = SignBitmap.fromRedisBytes(bytes, days);
+            b.streakEndingAt(i % days);
+            b.longestStreak(0, i % days);
+            b.count(0, i % days);
+        }
+        long scan = System.nanoTime() - begin;
+
+        System.out.println("shift avg=" + shift / times + "ns, scan(streak+longest+count) avg=" + scan / times + "ns");
+    }
+
+    @Test
+    public void testShopGridIndex() {
+        // 在约50km*55km的范围内随机生成100万个商铺
+        int n = 1000000;
+        Random random = new Random(1);
+        long[] ids = new long[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i + 1;
+            xs[i] = 120 + random.nextDouble() * 0.5;
+            ys[i] = 30 + random.nextDouble() * 0.5;
+        }
+        long before = usedHeap();
+        long begin = System.nanoTime();
+        ShopGridIndex index = new ShopGridIndex(ids, xs, ys, n);
+        long build = System.nanoTime() - begin;
+        long heap = usedHeap() - before;
+
+        // 校验与逐个计算距离的结果一致
+        for (int q = 0; q < 20; q++) {
+            double x = 120 + random.nextDouble() * 0.5, y = 30 + random.nextDouble() * 0.5;
+            ShopGridIndex.Neighbors neighbors = index.nearest(x, y, 5000, 10);
+            double[] all = new double[n];
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                double d = GeoHash.distance(x, y, xs[i], ys[i]);
+                if (d <= 5000) {
+                    all[count++] = d;
+                }
+            }
+            Arrays.sort(all, 0, count);
+            assert neighbors.ids.length == Math.min(10, count);
+            for (int i = 0; i < neighbors.ids.length; i++) {
+                assert Math.abs(neighbors.distances[i] - all[i]) < 1e-6;
+            }
+        }
+
+        int times = 10000;
+        double[] qx = new double[times], qy = new double[times];
+        for (int i = 0; i < times; i++) {
+            qx[i] = 120 + random.nextDouble() * 0.5;
+            qy[i] = 30 + random.nextDouble() * 0.5;
+        }
+        // 预热
+        for (int i = 0; i < times; i++) {
+            index.nearest(qx[i], qy[i], 5000, 10);
+        }
+        begin = System.nanoTime();
+        for (int i = 0; i < times; i++) {
+            index.nearest(qx[i], qy[i], 5000, 10);
+        }
+        long memory = System.nanoTime() - begin;
+
+        // 同样的数据写入redis，对比GEOSEARCH
+        String key = "test:shop:geo";
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        for (int from = 0; from < n; from += 10000) {
+            int start = from;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = start; i < start + 10000; i++) {
+                    connection.geoCommands().geoAdd(rawKey, new Point(xs[i], ys[i]),
+                            String.valueOf(ids[i]).getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+        }
+        try {
+            begin = System.nanoTime();
+            for (int i = 0; i < times; i++) {
+                stringRedisTemplate.opsForGeo().search(key, GeoReference.fromCoordinate(qx[i], qy[i]), new Distance(5000),
+                        RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().sortAscending().limit(10));
+            }
+            long redis = System.nanoTime() - begin;
+            System.out.println("grid build=" + build / 1000000 + "ms, heap≈" + heap / 1024 / 1024
+                    + "MB (estimate " + index.memoryBytes() / 1024 / 1024 + "MB), grid avg=" + memory / times / 1000
+                    + "us, GEOSEARCH avg=" + redis / times / 1000 + "us");
+        } finally {
+            stringRedisTemplate.delete(key);
+        }
+    }
+
+    @Test
+    public void testShopNameIndex() {
+        // 100万个随机名称的商铺，5%带有品牌名
+        String chars = "茶餐厅火锅烧烤面馆咖啡甜品小吃酒吧川湘粤江浙日料西餐海鲜自助快餐水果蛋糕奶茶";
+        String[] brands = {"海底捞", "星巴克", "喜茶", "Costa Coffee"};
+        int n = 1000000;
+        Random random = new Random(1);
+        String[] names = new String[n];
+        ShopSearchIndex index = new ShopSearchIndex();
+        for (int i = 0; i < n; i++) {
+            StringBuilder sb = new StringBuilder();
+            if (random.nextInt(20) == 0) {
+                sb.append(brands[random.nextInt(brands.length)]);
+            }
+            for (int j = 3 + random.nextInt(6); j > 0; j--) {
+                sb.append(chars.charAt(random.nextInt(chars.length())));
+            }
+            names[i] = sb.append("(").append(random.nextInt(500)).append("店)").toString();
+            Shop shop = new Shop();
+            shop.setId(i + 1L);
+            shop.setName(names[i]);
+            shop.setScore(random.nextInt(51));
+            shop.setSold(random.nextInt(10000));
+            index.put(shop);
+        }
+
+        for (String keyword : new String[]{"海底捞", "火锅", "coffee", "茶", "星巴克咖啡"}) {
+            // 预热
+            for (int i = 0; i < 10; i++) {
+                index.searchByName(keyword, false, 0, SystemConstants.MAX_PAGE_SIZE);
+            }
+            int times = 100;
+            long begin = System.nanoTime();
+            ShopSearchIndex.Hits hits = null;
+            for (int i = 0; i < times; i++) {
+                hits = index.searchByName(keyword, false, 0, SystemConstants.MAX_PAGE_SIZE);
+            }
+            long indexed = (System.nanoTime() - begin) / times;
+
+            // 逐个判断是否包含关键字，相当于LIKE '%关键字%'全表扫描的下限
+            begin = System.nanoTime();
+            int count = 0;
+            String lower = keyword.toLowerCase();
+            for (String name : names) {
+                if (name.toLowerCase().contains(lower)) {
+                    count++;
+                }
+            }
+            long scan = System.nanoTime() - begin;
+            assert hits.total == count;
+            System.out.println(keyword + ": " + count + " shops, index=" + indexed / 1000 + "us, scan=" + scan / 1000 + "us");
+        }
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // 原来的做法：从最后一天往前逐位移位判断
+    private static int streakByShift(byte[] bytes, int offset) {
+        int count = 0;
+        for (int i = offset; i >= 0; i--) {
+            if ((bytes[i >>> 3] >>> (7 - (i & 7)) & 1) == 0) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
 }